@@ -0,0 +1,92 @@
+import java.util.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of fixed-size direct buffers for the connections of an event loop
+ * Direct buffers are expensive to allocate and free, so they are carved out of
+ * large slabs (one allocateDirect per slab) and never freed: a connection borrows
+ * a buffer only while it is actively reading or writing and gives it back when it
+ * goes idle. A new slab is allocated when every buffer is in use.
+ * Not thread-safe: a buffer pool is only used by the thread of its event loop
+ * (the statistics can be read by other threads).
+ */
+public class BufferPool {
+
+	private final int bufferSize; // in bytes
+	private final int buffersPerSlab;
+
+	private final ArrayDeque<ByteBuffer> free; // the buffers that are not lent
+
+	// statistics
+	private volatile int capacity = 0; // number of buffers
+	private volatile int inUse = 0; // number of buffers lent
+	private volatile int peakInUse = 0;
+	private volatile int slabs = 0;
+
+	public BufferPool(int bufferSize, int buffersPerSlab) {
+		this.bufferSize = bufferSize;
+		this.buffersPerSlab = buffersPerSlab;
+		free = new ArrayDeque<>();
+	}
+
+	/**
+	 * Borrow a (cleared) buffer from the pool
+	 */
+	public ByteBuffer acquire() {
+		if (free.isEmpty()) {
+			allocateSlab();
+		}
+		ByteBuffer buffer = free.pop();
+		buffer.clear();
+		inUse++;
+		if (inUse > peakInUse)
+			peakInUse = inUse;
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool. The buffer must not be used afterwards
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		free.push(buffer);
+		inUse--;
+	}
+
+	/**
+	 * Allocate a slab and cut it into buffers
+	 */
+	private void allocateSlab() {
+		ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+		for (int i = 0; i < buffersPerSlab; i++) {
+			slab.limit((i + 1) * bufferSize);
+			slab.position(i * bufferSize);
+			free.add(slab.slice());
+		}
+		capacity += buffersPerSlab;
+		slabs++;
+		Util.DEBUG("BufferPool: allocate slab " + slabs);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getInUse() {
+		return inUse;
+	}
+
+	public int getPeakInUse() {
+		return peakInUse;
+	}
+
+	public int getSlabs() {
+		return slabs;
+	}
+
+	public String toString() {
+		return "<buffers:" + capacity + ", inUse:" + inUse + ", peakInUse:" + peakInUse + ", slabs:" + slabs
+				+ ", bufferSize:" + bufferSize + ">";
+	}
+}
@@ -0,0 +1,217 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The byte ranges of a Range request to a static file (RFC 7233), shared by all of the servers
+ * A Range header is parsed against the length of the file into the ranges to send, in
+ * the order of the request, with their ends clamped to the file. One range is sent as a
+ * 206 with a Content-Range header, and several ranges as a 206 multipart/byteranges whose
+ * part headers are built (and its Content-Length computed) before the body is sent, so that
+ * the handlers only have to copy the ranges of the content between them.
+ * A header that is not a valid "bytes=" range set is ignored (the whole file is sent), and
+ * so is a request for more than MAX_RANGES ranges, which could make the server send the
+ * same bytes many times over.
+ */
+public final class ByteRanges {
+
+	// maximum number of ranges in a request, beyond which the Range header is ignored
+	public static final int MAX_RANGES = 16;
+
+	// the boundary of the multipart/byteranges responses (random, so it is very unlikely to appear in a file)
+	public static final String BOUNDARY = "RW_HTTPServer_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+	public static final String MULTIPART_CONTENT_TYPE = "multipart/byteranges; boundary=" + BOUNDARY;
+
+	private static final byte[] CLOSE_DELIMITER = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	private final long length; // of the file
+	private final long[] starts;
+	private final long[] ends; // inclusive
+	private final int count;
+
+	// multipart: the part header in front of every range, and the closing delimiter after the last one
+	private byte[][] delimiters;
+
+	private ByteRanges(long length, long[] starts, long[] ends, int count) {
+		this.length = length;
+		this.starts = starts;
+		this.ends = ends;
+		this.count = count;
+	}
+
+	/**
+	 * Parse a Range header against a file
+	 * @param header the value of the Range header, e.g., "bytes=0-499,-500"
+	 * @param length of the file
+	 * @return the ranges (none if no range is satisfiable, i.e., 416), or null if the header
+	 * is to be ignored (not a valid byte range set, or more than MAX_RANGES ranges)
+	 */
+	public static ByteRanges parse(String header, long length) {
+		header = header.trim();
+		int eq = header.indexOf('=');
+		if (eq == -1 || !header.substring(0, eq).trim().equalsIgnoreCase("bytes"))
+			return null;
+		String[] specs = header.substring(eq + 1).split(",", -1);
+		if (specs.length > MAX_RANGES)
+			return null;
+		long[] starts = new long[specs.length];
+		long[] ends = new long[specs.length];
+		int count = 0;
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash == -1)
+				return null;
+			long first = parseNumber(spec.substring(0, dash).trim());
+			long last = parseNumber(spec.substring(dash + 1).trim());
+			long start, end;
+			if (dash == 0) {
+				// a suffix: the last bytes of the file
+				if (last == -1)
+					return null;
+				if (last == 0)
+					continue; // not satisfiable
+				start = Math.max(length - last, 0);
+				end = length - 1;
+			} else {
+				if (first == -1 || spec.length() > dash + 1 && last == -1)
+					return null;
+				if (last != -1 && last < first)
+					return null;
+				start = first;
+				end = last == -1 ? length - 1 : Math.min(last, length - 1);
+			}
+			if (start >= length)
+				continue; // not satisfiable
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+		}
+		return new ByteRanges(length, starts, ends, count);
+	}
+
+	/**
+	 * @return the value of a string of digits, or -1 if it is empty or not a number
+	 */
+	private static long parseNumber(String s) {
+		if (s.isEmpty() || s.length() > 18)
+			return -1;
+		long n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * whether a Range header applies given the If-Range header of the request
+	 * The file is the one the client has part of if If-Range is its entity tag (strong
+	 * comparison, so a weak tag never matches) or its exact Last-Modified date.
+	 * @param ifRange the If-Range header, or null if it is not present
+	 * @param lastModified of the file, in millisec
+	 * @param etag of the file (see ETag)
+	 */
+	public static boolean ifRange(String ifRange, long lastModified, String etag) {
+		if (ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if (ETag.isTag(ifRange))
+			return ifRange.equals(etag);
+		byte[] b = ifRange.getBytes(StandardCharsets.ISO_8859_1);
+		long date = HTTPDate.parse(b, 0, b.length);
+		return date != -1 && date / 1000 == lastModified / 1000;
+	}
+
+	/**
+	 * whether at least one range is satisfiable (otherwise the response is a 416)
+	 */
+	public boolean isSatisfiable() {
+		return count > 0;
+	}
+
+	/**
+	 * whether the response is a multipart/byteranges
+	 */
+	public boolean isMultipart() {
+		return count > 1;
+	}
+
+	/**
+	 * @return number of ranges
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * @return the first byte of range i
+	 */
+	public long start(int i) {
+		return starts[i];
+	}
+
+	/**
+	 * @return the last byte of range i (inclusive)
+	 */
+	public long end(int i) {
+		return ends[i];
+	}
+
+	/**
+	 * @return the Content-Range header of a single range response
+	 */
+	public byte[] contentRangeHeader() {
+		return ("Content-Range: bytes " + starts[0] + "-" + ends[0] + "/" + length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return the Content-Range header of a 416 response to a request for a file of length bytes
+	 */
+	public static byte[] unsatisfiableHeader(long length) {
+		return ("Content-Range: bytes */" + length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Build the part headers of a multipart/byteranges response
+	 * @param contentType of the file
+	 * @return the Content-Length of the response
+	 */
+	public long multipart(String contentType) {
+		delimiters = new byte[count + 1][];
+		long contentLength = 0;
+		for (int i = 0; i < count; i++) {
+			delimiters[i] = ("\r\n--" + BOUNDARY + "\r\n"
+					+ "Content-Type: " + contentType + "\r\n"
+					+ "Content-Range: bytes " + starts[i] + "-" + ends[i] + "/" + length + "\r\n"
+					+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+			contentLength += delimiters[i].length + ends[i] - starts[i] + 1;
+		}
+		delimiters[count] = CLOSE_DELIMITER;
+		return contentLength + CLOSE_DELIMITER.length;
+	}
+
+	/**
+	 * @return the part header in front of range i, or the closing delimiter if i == count()
+	 * (after multipart())
+	 */
+	public byte[] delimiter(int i) {
+		return delimiters[i];
+	}
+
+	/**
+	 * @return number of bytes of range i
+	 */
+	public long size(int i) {
+		return ends[i] - starts[i] + 1;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ByteRanges: ");
+		for (int i = 0; i < count; i++)
+			sb.append((i == 0 ? "" : ",") + starts[i] + "-" + ends[i]);
+		return sb.append("/" + length).toString();
+	}
+}
@@ -0,0 +1,206 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A CGI process of the select server, run off the event loop
+ * Java cannot select on the pipes of a process, so the blocking work (resolving
+ * REMOTE_HOST, forking the process, writing its stdin and draining its stdout) is
+ * done by the threads of an offload executor: one task drains stdout while another
+ * one copies the request body to stdin as it arrives from the client (see RequestBody),
+ * so neither pipe can fill up and block the other, and the script starts before the
+ * end of the body.
+ * With FastCGIPass, the script is run by the FastCGI responder instead of a new
+ * process, and its stdout is drained the same way (see FastCGIClient).
+ * The output is framed into chunks as it arrives (see Chunked) and handed to the
+ * handler through a queue of at most MAX_PENDING_CHUNKS chunks: when the client reads
+ * slowly, the queue fills up and the reader blocks, and then the script blocks once
+ * the pipe is full, so the memory of a response is bounded whatever the output size.
+ * The handler is called back in the thread of its event loop through the task queue
+ * of the event loop (once per batch of chunks rather than per chunk), so the event
+ * loop never waits for a script and keeps serving the other connections meanwhile.
+ */
+public class CGIProcess implements Runnable {
+
+	// maximum number of chunks read ahead of the client
+	public static final int MAX_PENDING_CHUNKS = 4;
+
+	private final ProcessBuilder pb; // null if the script is run by a FastCGI responder
+	private final FastCGIClient fastCGI; // null if the script is run by a new process
+	private final Map<String, String> env; // the CGI variables (of pb, or the FastCGI params)
+	private final RequestBody body; // the request body for stdin, or null
+	private final InetAddress remoteAddress;
+	private final Executor executor; // the offload executor
+	private final EventLoop eventLoop; // the event loop of the handler
+	private final SelectHTTPRequestHandler handler;
+
+	private volatile Process process;
+	private volatile FastCGIClient.Request fastCGIRequest;
+	private volatile boolean canceled = false;
+
+	// the output, taken by the handler in the event loop
+	private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+	private volatile boolean finished = false; // every chunk has been queued, or error is set
+	private volatile IOException error;
+	// whether a callback is pending, so that the event loop is not woken up for every chunk
+	private final AtomicBoolean signaled = new AtomicBoolean(false);
+
+	public CGIProcess(ProcessBuilder pb, FastCGIClient fastCGI, Map<String, String> env, RequestBody body,
+			InetAddress remoteAddress, Executor executor, EventLoop eventLoop, SelectHTTPRequestHandler handler) {
+		this.pb = pb;
+		this.fastCGI = fastCGI;
+		this.env = env;
+		this.body = body;
+		this.remoteAddress = remoteAddress;
+		this.executor = executor;
+		this.eventLoop = eventLoop;
+		this.handler = handler;
+	}
+
+	/**
+	 * Start the process in the offload executor
+	 */
+	public void start() {
+		executor.execute(this);
+	}
+
+	@Override
+	public void run() {
+		try {
+			// a reverse DNS lookup may block, so it is not done in the event loop
+			env.put("REMOTE_HOST", remoteAddress.getHostName());
+
+			if (fastCGI != null) {
+				FastCGIClient.Request r = fastCGI.start(env);
+				fastCGIRequest = r;
+				// the connection may have been closed while the request was being sent
+				if (canceled)
+					r.abort();
+				writeInput(r.getOutputStream());
+				readOutput(r.getInputStream());
+			} else {
+				// the errors of the script go to the log of the server
+				pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+				Process p = pb.start();
+				process = p;
+				// the connection may have been closed while the process was starting
+				if (canceled)
+					destroy(p);
+
+				writeInput(p.getOutputStream());
+				readOutput(p.getInputStream());
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			// the executor is shutting down
+			error = new InterruptedIOException("CGI output interrupted");
+		}
+
+		finished = true;
+		signal();
+	}
+
+	/**
+	 * Copy the request body to stdin in another task, or close stdin if there is no body
+	 */
+	private void writeInput(OutputStream stdin) throws IOException {
+		if (body == null) {
+			stdin.close();
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				body.transferTo(stdin);
+			} catch (IOException e) {
+				// the client has gone away, the connection cancels the process
+				Util.DEBUG("CGI stdin: " + e);
+			}
+		});
+	}
+
+	/**
+	 * Drain the stdout of the script until EOF, one chunk per block, and queue the last chunk
+	 * here, we ignore the header output by the CGI program and treat it the same as data
+	 */
+	private void readOutput(InputStream stdout) throws IOException, InterruptedException {
+		try (stdout) {
+			ByteBuffer chunk;
+			// a new buffer per chunk, since the handler may still be sending the previous ones
+			while ((chunk = Chunked.read(stdout, Chunked.newBuffer())) != null) {
+				chunks.put(chunk); // blocks while the client is MAX_PENDING_CHUNKS chunks behind
+				if (canceled)
+					return;
+				signal();
+			}
+			chunks.put(ByteBuffer.wrap(Chunked.LAST_CHUNK));
+		}
+	}
+
+	/**
+	 * Call the handler back in the event loop, unless a callback is already pending
+	 */
+	private void signal() {
+		if (signaled.compareAndSet(false, true))
+			eventLoop.execute(() -> handler.cgiOutputReady(this));
+	}
+
+	/**
+	 * Kill the process, e.g., because the connection has been closed
+	 * Called by the event loop
+	 */
+	public void cancel() {
+		canceled = true;
+		// a reader blocked on the full queue wakes up and sees canceled
+		chunks.clear();
+		Process p = process;
+		if (p != null)
+			destroy(p);
+		FastCGIClient.Request r = fastCGIRequest;
+		if (r != null)
+			r.abort();
+	}
+
+	/**
+	 * Kill a process and the processes it has started (e.g., the commands of a shell script)
+	 */
+	private static void destroy(Process p) {
+		p.descendants().forEach(ProcessHandle::destroy);
+		p.destroy();
+	}
+
+	/**
+	 * Take the next chunk of the output
+	 * If null is returned, the handler is called back when there is more output
+	 * Called by the event loop
+	 * @return the chunk, or null if there is none for now
+	 */
+	public ByteBuffer poll() {
+		ByteBuffer chunk = chunks.poll();
+		if (chunk == null) {
+			// from now on, a queued chunk calls the handler back
+			signaled.set(false);
+			chunk = chunks.poll();
+		}
+		return chunk;
+	}
+
+	/**
+	 * whether every chunk has been queued (or the process has failed)
+	 * Read it before poll(): if it is true and poll() returns null, there is no more output
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return the exception if the process could not be run or its output could not be read, or null
+	 */
+	public IOException getError() {
+		return error;
+	}
+}
@@ -0,0 +1,101 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * The caching policy of the static files of a virtual host: their Cache-Control and Expires headers
+ * It is set by the directives of the virtual host in the configuration file:
+ *   CacheControl <directives>        e.g., public, sent with every file
+ *   ExpiresDefault <seconds>         lifetime of every file, sent as max-age and as an Expires date
+ *   ExpiresByType <type> <seconds>   lifetime of the files of a media type (instead of ExpiresDefault)
+ * A policy is only modified while the configuration file is read. The headers of a lifetime change
+ * with the Expires date, so like the Date header (see HTTPDate) they are formatted at most once per
+ * second into bytes shared by every response of that second.
+ */
+public class CachePolicy {
+
+	private String cacheControl; // null if none
+	private byte[] cacheControlHeader; // without a lifetime
+	private Expiry expiresDefault; // null if none
+	private final HashMap<String, Expiry> expiresByType = new HashMap<>();
+
+	/**
+	 * The headers of a lifetime in a second
+	 */
+	private static final class Stamp {
+		final long second; // since the epoch
+		final byte[] headers;
+
+		Stamp(long second, byte[] headers) {
+			this.second = second;
+			this.headers = headers;
+		}
+	}
+
+	/**
+	 * A lifetime, and its headers of the current second
+	 */
+	private final class Expiry {
+		final long seconds;
+		volatile Stamp stamp = new Stamp(-1, null);
+
+		Expiry(long seconds) {
+			this.seconds = seconds;
+		}
+
+		byte[] headers() {
+			long now = System.currentTimeMillis();
+			Stamp s = stamp;
+			if (s.second != now / 1000) {
+				// several threads may format the same second, which is harmless
+				String value = (cacheControl != null ? cacheControl + ", " : "") + "max-age=" + seconds;
+				s = new Stamp(now / 1000, ("Cache-Control: " + value + "\r\n"
+						+ "Expires: " + HTTPDate.format((now / 1000 + seconds) * 1000) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+				stamp = s;
+			}
+			return s.headers;
+		}
+	}
+
+	public void setCacheControl(String cacheControl) {
+		this.cacheControl = cacheControl;
+		this.cacheControlHeader = ("Cache-Control: " + cacheControl + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @param seconds lifetime of every file
+	 */
+	public void setExpiresDefault(long seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("negative lifetime");
+		expiresDefault = new Expiry(seconds);
+	}
+
+	/**
+	 * @param contentType media type, e.g., image/jpeg
+	 * @param seconds lifetime of the files of that type
+	 */
+	public void setExpiresByType(String contentType, long seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("negative lifetime");
+		expiresByType.put(contentType, new Expiry(seconds));
+	}
+
+	/**
+	 * @param contentType of the file
+	 * @return the Cache-Control and Expires headers of a file (shared bytes that must not be
+	 * modified), or null if the policy has none
+	 */
+	public byte[] headers(String contentType) {
+		Expiry expiry = expiresByType.get(contentType);
+		if (expiry == null)
+			expiry = expiresDefault;
+		if (expiry != null)
+			return expiry.headers();
+		return cacheControlHeader;
+	}
+
+	public String toString() {
+		return "CacheControl: " + cacheControl + ", ExpiresDefault: " + (expiresDefault != null ? expiresDefault.seconds : null)
+				+ ", ExpiresByType: " + expiresByType.size();
+	}
+}
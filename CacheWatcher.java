@@ -0,0 +1,159 @@
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A background thread that keeps the FileCache (and the OpenFileCache) consistent with the file system
+ * It watches the document root (and every directory under it) of each virtual host
+ * with a WatchService, and removes the cached entries of the files that are
+ * created, modified or deleted. The next request of such a file reads it again.
+ * Any change empties the OpenFileCache, since a new file or directory may change the
+ * resolution of other requests (a 404, or the index file of a directory).
+ * As a fallback (e.g., the WatchService is not available, events are lost, or the
+ * file system does not report changes), every cached entry is checked against the
+ * mtime and size of its file every VALIDATE_INTERVAL millisec.
+ * Neither check is done on the request path.
+ */
+public class CacheWatcher implements Runnable {
+
+	// interval (in millisec) of the mtime/size check of every cached entry
+	public static final long VALIDATE_INTERVAL = 5000;
+
+	private final FileCache cache; // null if no CacheSize
+	private final OpenFileCache openFileCache; // null if OpenFileCache off
+	private final Collection<VirtualHost> virtualHosts;
+
+	private WatchService watchService; // null if not supported
+	// the directory watched by each key
+	private final HashMap<WatchKey, Path> watchedDirs = new HashMap<>();
+
+	public CacheWatcher(FileCache cache, OpenFileCache openFileCache, Collection<VirtualHost> virtualHosts) {
+		this.cache = cache;
+		this.openFileCache = openFileCache;
+		this.virtualHosts = virtualHosts;
+	}
+
+	/**
+	 * Start watching the document roots of the virtual hosts in a daemon thread
+	 * @param cache
+	 * @param openFileCache
+	 * @param virtualHosts
+	 */
+	public static void start(FileCache cache, OpenFileCache openFileCache, Collection<VirtualHost> virtualHosts) {
+		Thread thread = new Thread(new CacheWatcher(cache, openFileCache, virtualHosts), "CacheWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			for (VirtualHost vh : virtualHosts) {
+				registerAll(Paths.get(vh.getDocRoot()));
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			Util.DEBUG("WatchService is not available, only the mtime/size check is used");
+			watchService = null;
+		}
+
+		long nextValidate = System.currentTimeMillis() + VALIDATE_INTERVAL;
+		while (true) {
+			try {
+				long wait = Math.max(nextValidate - System.currentTimeMillis(), 1);
+				if (watchService != null) {
+					WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						handleEvents(key);
+					}
+				} else {
+					Thread.sleep(wait);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				watchService = null;
+			}
+
+			if (System.currentTimeMillis() >= nextValidate) {
+				validate();
+				nextValidate = System.currentTimeMillis() + VALIDATE_INTERVAL;
+			}
+		}
+	}
+
+	/**
+	 * Remove the cached entries of the files reported by the events of a key
+	 * @param key
+	 */
+	private void handleEvents(WatchKey key) {
+		Path dir = watchedDirs.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			WatchEvent.Kind<?> kind = event.kind();
+
+			if (openFileCache != null)
+				openFileCache.clear();
+
+			// some events are lost, check every entry
+			if (kind == StandardWatchEventKinds.OVERFLOW || dir == null) {
+				validate();
+				continue;
+			}
+
+			Path child = dir.resolve((Path) event.context());
+			Util.DEBUG("CacheWatcher: " + kind.name() + " " + child);
+			if (cache != null) {
+				try {
+					cache.invalidate(child.toFile().getCanonicalPath());
+				} catch (IOException e) {
+					cache.validate();
+				}
+			}
+
+			// watch the new directories as well
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					registerAll(child);
+				} catch (IOException e) {
+					Util.DEBUG("CacheWatcher: cannot watch " + child);
+				}
+			}
+		}
+
+		// the directory is no longer accessible (e.g., deleted)
+		if (!key.reset()) {
+			watchedDirs.remove(key);
+		}
+	}
+
+	/**
+	 * Check every entry of the FileCache against its file
+	 */
+	private void validate() {
+		if (cache != null)
+			cache.validate();
+	}
+
+	/**
+	 * Watch a directory and all of its sub-directories
+	 * @param root
+	 * @throws IOException
+	 */
+	private void registerAll(Path root) throws IOException {
+		if (!Files.isDirectory(root)) {
+			Util.DEBUG("CacheWatcher: " + root + " is not a directory");
+			return;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				watchedDirs.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
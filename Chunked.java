@@ -0,0 +1,60 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The chunked transfer coding of the CGI output, shared by all of the servers
+ * The output is read in blocks of at most BLOCK_SIZE bytes (whatever the process has
+ * written so far, so a block is forwarded as soon as it arrives) and every block is
+ * sent as one chunk. A block is read into a chunk buffer after HEADER_SPACE bytes, so
+ * that the size line is written in front of it and the \r\n after it in place: a
+ * whole chunk is one contiguous range of bytes, which is sent with a single write.
+ */
+public final class Chunked {
+
+	// maximum number of bytes of a chunk (the size fits in 4 hex digits)
+	public static final int BLOCK_SIZE = 4096;
+
+	// room for the size line in front of a block: 4 hex digits and \r\n
+	private static final int HEADER_SPACE = 6;
+
+	// the last chunk (with an empty trailer)
+	public static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private Chunked() {
+	}
+
+	/**
+	 * @return a buffer that can hold any chunk
+	 */
+	public static byte[] newBuffer() {
+		return new byte[HEADER_SPACE + BLOCK_SIZE + 2];
+	}
+
+	/**
+	 * Read the next block of in into buf and frame it as a chunk
+	 * Blocks until at least one byte is available
+	 * @param buf a buffer from newBuffer()
+	 * @return the chunk (a view of buf from its position to its limit), or null at EOF
+	 * @throws IOException
+	 */
+	public static ByteBuffer read(InputStream in, byte[] buf) throws IOException {
+		int n = in.read(buf, HEADER_SPACE, BLOCK_SIZE);
+		if (n == -1)
+			return null;
+		// the size in hex, right-aligned before the block
+		int start = HEADER_SPACE - 2;
+		buf[start] = '\r';
+		buf[start + 1] = '\n';
+		int size = n;
+		do {
+			buf[--start] = HEX[size & 0xf];
+			size >>>= 4;
+		} while (size != 0);
+		buf[HEADER_SPACE + n] = '\r';
+		buf[HEADER_SPACE + n + 1] = '\n';
+		return ByteBuffer.wrap(buf, start, HEADER_SPACE + n + 2 - start);
+	}
+}
@@ -6,7 +6,7 @@ import java.util.*;
  */
 public class CommandThread implements Runnable {
 
-	public static final String CMDS[] = { "help", "shutdown" };
+	public static final String CMDS[] = { "help", "shutdown", "stats" };
 	public Vector<Command> commandQ;
 
 	public CommandThread() {
@@ -27,6 +27,8 @@ public class CommandThread implements Runnable {
 				} else if (CMDS[1].equals(command)) {
 					shutdown();
 					return;
+				} else if (CMDS[2].equals(command)) {
+					stats();
 				} else {
 					System.out.println("command not found. Type \"help\" for help");
 				}
@@ -40,6 +42,25 @@ public class CommandThread implements Runnable {
 		System.out.println("commands:");
 		System.out.println("\thelp      : print out this message");
 		System.out.println("\tshutdown  : shutdown the selector");
+		System.out.println("\tstats     : print out the connection slots, the pool occupancy of the event loops, the caches and the FastCGI connections");
+	}
+
+	// the statistics are only read, so there is no need to run it in the event loops
+	public void stats() {
+		System.out.println("<acceptor, connections:" + SelectHTTPServer.openConnections.get() + "/" + SelectHTTPServer.maxConnections
+				+ ", acceptDisabled:" + SelectHTTPServer.acceptDisabled() + ", acceptPaused:" + SelectHTTPServer.acceptPaused + ">");
+		for (EventLoop loop : SelectHTTPServer.eventLoops) {
+			System.out.println(loop);
+		}
+		if (SelectHTTPServer.cache != null) {
+			System.out.println(SelectHTTPServer.cache);
+		}
+		if (SelectHTTPServer.openFileCache != null) {
+			System.out.println(SelectHTTPServer.openFileCache);
+		}
+		for (FastCGIClient client : FastCGIClient.getClients()) {
+			System.out.println(client);
+		}
 	}
 
 	public void shutdown() {
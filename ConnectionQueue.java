@@ -0,0 +1,298 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.Vector;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The queue that hands the accepted connections from the main thread of the thread
+ * server over to the threads of its pool
+ * (the third hand-off, HandOff accept, needs no queue: every thread of the pool calls
+ * accept on the listening socket itself)
+ * The queue is served in arrival order, and its discipline decides which connections
+ * are not worth serving any more when they are taken: those get a fast 503 and are
+ * closed without reading their requests, so that the pool spends its time on the
+ * clients that are still waiting (see QueueDiscipline in ThreadHTTPServer).
+ * The sojourn time of every connection (from accept to take) is recorded in stats.
+ */
+public abstract class ConnectionQueue {
+
+	// CoDel: the queue is overloaded if no connection of the last interval waited less than the target
+	public static final long CODEL_TARGET = TimeUnit.MILLISECONDS.toNanos(5);
+	public static final long CODEL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static final byte[] SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\n".getBytes();
+
+	/**
+	 * A connection in the queue
+	 */
+	protected static class Entry {
+		final Socket socket;
+		final long enqueued = System.nanoTime();
+
+		Entry(Socket socket) {
+			this.socket = socket;
+		}
+	}
+
+	private final String discipline; // fifo, codel or deadline
+	private final long deadline; // deadline: in nanosec after the accept
+
+	// CoDel state, shared by the threads of the pool without a lock (see codel)
+	private final AtomicLong intervalEnd = new AtomicLong(0);
+	private final AtomicLong minSojourn = new AtomicLong(Long.MAX_VALUE); // in the current interval
+	private volatile boolean overloaded = false; // in the last interval
+
+	public final Stats stats = new Stats();
+
+	/**
+	 * @param discipline fifo, codel or deadline
+	 * @param deadline in millisec after the accept, for the deadline discipline
+	 */
+	protected ConnectionQueue(String discipline, long deadline) {
+		this.discipline = discipline;
+		this.deadline = TimeUnit.MILLISECONDS.toNanos(deadline);
+	}
+
+	/**
+	 * @param handOff locked or lockfree
+	 * @param discipline fifo, codel or deadline
+	 * @param deadline in millisec after the accept, for the deadline discipline
+	 */
+	public static ConnectionQueue create(String handOff, String discipline, long deadline) {
+		return handOff.equals("locked") ? new Locked(discipline, deadline) : new LockFree(discipline, deadline);
+	}
+
+	/**
+	 * Queue an accepted connection, and wake up an idle thread if any
+	 * Called by the main thread
+	 */
+	public void put(Socket socket) {
+		offer(new Entry(socket));
+	}
+
+	/**
+	 * Take the first connection worth serving, waiting for one if the queue is empty
+	 * The connections dropped by the discipline on the way get a 503
+	 * Called by the threads of the pool
+	 */
+	public Socket take() throws InterruptedException {
+		while (true) {
+			Entry e = poll();
+			long sojourn = System.nanoTime() - e.enqueued;
+			if (drop(sojourn)) {
+				stats.dropped.increment();
+				Util.DEBUG("Drop " + e.socket + " after " + sojourn / 1000 + " microsec in the queue");
+				reject(e.socket);
+				Metrics.request(null, 503, SERVICE_UNAVAILABLE.length, sojourn);
+				continue;
+			}
+			stats.record(sojourn);
+			return e.socket;
+		}
+	}
+
+	/**
+	 * whether a connection that has waited sojourn nanosec in the queue is dropped
+	 */
+	private boolean drop(long sojourn) {
+		switch (discipline) {
+		case "codel":
+			return codel(sojourn);
+		case "deadline":
+			// still served in arrival order (every connection gets the same deadline after the
+			// accept, so there is nothing to reorder): a connection is only dropped once it has
+			// missed its deadline, since its client has likely given up
+			return sojourn > deadline;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * CoDel (controlled delay), as used for the request queues of RPC servers: a queue that
+	 * only fills up under a burst drains by itself, and nothing is dropped unless a connection
+	 * has waited a whole interval. But if the queue has not been shorter than the target in
+	 * the last interval, it is a standing queue that only adds latency, so every connection
+	 * that has waited longer than the target is dropped until the queue is short again
+	 * It takes no lock, so that the LockFree queue stays lock-free on the way out: the thread
+	 * that wins the CAS of the end of the interval starts the next one, and the minimum is only
+	 * written when it goes down. A sojourn time recorded while an interval is being closed may
+	 * be counted in either of them, which does not matter for a minimum over 100 ms
+	 */
+	private boolean codel(long sojourn) {
+		long now = System.nanoTime();
+		long end = intervalEnd.get();
+		if (now > end && intervalEnd.compareAndSet(end, now + CODEL_INTERVAL)) {
+			long min = minSojourn.getAndSet(Long.MAX_VALUE);
+			// an interval without any connection is not overloaded
+			overloaded = min != Long.MAX_VALUE && min > CODEL_TARGET;
+		}
+		if (sojourn < minSojourn.get())
+			minSojourn.accumulateAndGet(sojourn, Math::min);
+		return sojourn > (overloaded ? CODEL_TARGET : CODEL_INTERVAL);
+	}
+
+	/**
+	 * Answer 503 without reading the request, and close the connection
+	 */
+	private static void reject(Socket socket) {
+		try (socket) {
+			// skip what has arrived of the request, so that closing does not reset the connection
+			InputStream in = socket.getInputStream();
+			in.skip(in.available());
+			socket.getOutputStream().write(SERVICE_UNAVAILABLE);
+		} catch (IOException e) {
+			Util.DEBUG("cannot reject " + socket + ": " + e);
+		}
+	}
+
+	/**
+	 * Add a connection at the tail
+	 */
+	protected abstract void offer(Entry e);
+
+	/**
+	 * Remove the connection at the head, waiting for one if the queue is empty
+	 */
+	protected abstract Entry poll() throws InterruptedException;
+
+	/**
+	 * whether no connection is waiting for a thread
+	 */
+	public abstract boolean isEmpty();
+
+	public String toString() {
+		return "connection queue (" + discipline + "): " + stats;
+	}
+
+	/**
+	 * The sojourn times of the connections served, and the number of connections dropped
+	 * Written by the threads of the pool without locking, and read by the Heartbeat Monitoring
+	 */
+	public static class Stats {
+
+		// the upper bounds of the buckets of the histogram, in millisec (and a last bucket for the rest)
+		public static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+		public final LongAdder served = new LongAdder();
+		public final LongAdder dropped = new LongAdder();
+		public final LongAdder sojournNanos = new LongAdder(); // sum of the sojourn times of served
+		public final LongAccumulator maxSojournNanos = new LongAccumulator(Math::max, 0);
+		public final LongAdder[] histogram = new LongAdder[BUCKETS.length + 1];
+
+		Stats() {
+			for (int i = 0; i < histogram.length; i++)
+				histogram[i] = new LongAdder();
+		}
+
+		void record(long sojourn) {
+			served.increment();
+			sojournNanos.add(sojourn);
+			maxSojournNanos.accumulate(sojourn);
+			int i = 0;
+			while (i < BUCKETS.length && sojourn > TimeUnit.MILLISECONDS.toNanos(BUCKETS[i]))
+				i++;
+			histogram[i].increment();
+		}
+
+		/**
+		 * Write the sojourn times and the drops in the Prometheus text format (see Metrics)
+		 */
+		public void write(StringBuilder sb) {
+			double[] le = new double[BUCKETS.length];
+			long[] counts = new long[histogram.length];
+			for (int i = 0; i < histogram.length; i++) {
+				if (i < BUCKETS.length)
+					le[i] = BUCKETS[i] / 1e3;
+				counts[i] = histogram[i].sum();
+			}
+			Metrics.histogram(sb, "queue_sojourn_seconds", "Time from the accept to a thread of the pool, of the connections served",
+					le, counts, sojournNanos.sum() / 1e9);
+			Metrics.header(sb, "queue_dropped_total", "counter", "Connections dropped with a 503 by the queue discipline");
+			sb.append(Metrics.PREFIX + "queue_dropped_total " + dropped.sum() + "\n");
+		}
+
+		public String toString() {
+			long n = served.sum();
+			StringBuilder sb = new StringBuilder();
+			sb.append(n + " served, " + dropped.sum() + " dropped, sojourn time avg "
+					+ String.format("%.3f", n == 0 ? 0.0 : sojournNanos.sum() / 1e6 / n) + " ms, max "
+					+ String.format("%.3f", maxSojournNanos.get() / 1e6) + " ms");
+			for (int i = 0; i < histogram.length; i++) {
+				long count = histogram[i].sum();
+				if (count > 0)
+					sb.append(", " + (i < BUCKETS.length ? "<= " + BUCKETS[i] : "> " + BUCKETS[i - 1]) + " ms: " + count);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The original hand-off: a Vector guarded by its monitor, with wait/notify
+	 * Every thread of the pool and the main thread compete for the monitor, and remove(0)
+	 * shifts the whole Vector, so it is kept as the baseline of the benchmark
+	 */
+	static class Locked extends ConnectionQueue {
+
+		private final Vector<Entry> queue = new Vector<>();
+
+		Locked(String discipline, long deadline) {
+			super(discipline, deadline);
+		}
+
+		@Override
+		protected void offer(Entry e) {
+			synchronized (queue) {
+				queue.add(e);
+				queue.notify();
+			}
+		}
+
+		@Override
+		protected Entry poll() throws InterruptedException {
+			synchronized (queue) {
+				while (queue.isEmpty())
+					queue.wait();
+				return queue.remove(0);
+			}
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return queue.isEmpty();
+		}
+	}
+
+	/**
+	 * A lock-free MPMC queue (LinkedTransferQueue): put and take are a CAS on the head or
+	 * the tail of a linked list, and a connection put while a thread is idle is handed
+	 * directly to that thread (which is unparked), rather than queued and taken again
+	 */
+	static class LockFree extends ConnectionQueue {
+
+		private final LinkedTransferQueue<Entry> queue = new LinkedTransferQueue<>();
+
+		LockFree(String discipline, long deadline) {
+			super(discipline, deadline);
+		}
+
+		@Override
+		protected void offer(Entry e) {
+			queue.put(e);
+		}
+
+		@Override
+		protected Entry poll() throws InterruptedException {
+			return queue.take();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return queue.isEmpty();
+		}
+	}
+}
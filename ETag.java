@@ -0,0 +1,78 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Entity tags of static files and the matching of the If-None-Match and If-Range headers,
+ * shared by all of the servers (RFC 7232)
+ * The tag of a file is derived from its mtime (in millisec) and its size, e.g., "18c3a2f0e48-1f4",
+ * so it is the same whether the file is served from the cache or from the file system, and it
+ * changes with every modification of the file. It is a strong tag: a file cannot change without
+ * changing its mtime or size in the same millisecond. The tag and its ETag header are built once
+ * per cache entry (see FileCache.Entry), so a cached file is revalidated without a system call.
+ */
+public final class ETag {
+
+	private static final byte[] ETAG = "ETag: ".getBytes(StandardCharsets.US_ASCII);
+
+	private ETag() {
+	}
+
+	/**
+	 * @param lastModified of the file, in millisec
+	 * @param length of the file
+	 * @return the entity tag of the file, with its quotes
+	 */
+	public static String of(long lastModified, long length) {
+		return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+	}
+
+	/**
+	 * @return the ETag header of a tag, e.g., "ETag: \"18c3a2f0e48-1f4\"\r\n"
+	 */
+	public static byte[] header(String etag) {
+		byte[] tag = etag.getBytes(StandardCharsets.US_ASCII);
+		byte[] b = new byte[ETAG.length + tag.length + 2];
+		System.arraycopy(ETAG, 0, b, 0, ETAG.length);
+		System.arraycopy(tag, 0, b, ETAG.length, tag.length);
+		b[b.length - 2] = '\r';
+		b[b.length - 1] = '\n';
+		return b;
+	}
+
+	/**
+	 * whether an If-None-Match header matches the tag of a file, i.e., the client already has it
+	 * The comparison is weak (a W/ prefix is ignored), and "*" matches any file.
+	 * @param ifNoneMatch a list of tags, e.g., "\"a-1\", W/\"b-2\"", or "*"
+	 * @param etag of the file
+	 */
+	public static boolean noneMatch(String ifNoneMatch, String etag) {
+		int i = 0;
+		int n = ifNoneMatch.length();
+		while (i < n) {
+			char c = ifNoneMatch.charAt(i);
+			if (c == ' ' || c == '\t' || c == ',') {
+				i++;
+				continue;
+			}
+			if (c == '*')
+				return true;
+			if (ifNoneMatch.startsWith("W/", i))
+				i += 2;
+			if (i >= n || ifNoneMatch.charAt(i) != '"')
+				return false; // malformed, the rest cannot be trusted
+			int end = ifNoneMatch.indexOf('"', i + 1);
+			if (end == -1)
+				return false;
+			if (ifNoneMatch.regionMatches(i, etag, 0, etag.length()) && end + 1 - i == etag.length())
+				return true;
+			i = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * whether the value of an If-Range header is an entity tag (otherwise it is a date)
+	 */
+	public static boolean isTag(String ifRange) {
+		return ifRange.startsWith("\"") || ifRange.startsWith("W/");
+	}
+}
@@ -0,0 +1,286 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.channels.*;
+
+/**
+ * A worker event loop of the select server
+ * The acceptor (the main thread) accepts a connection and hands it over to one
+ * of the event loops through register(). Each event loop owns a selector and
+ * every SelectHTTPRequestHandler attached to the keys of this selector, so the
+ * state of a connection is only touched by the thread of its event loop.
+ * The I/O buffers and the handlers are pooled per event loop: a handler is recycled
+ * when its connection is closed, and borrows buffers from the buffer pool only while
+ * its connection is reading or writing, so idle connections hold no buffer.
+ */
+public class EventLoop implements Runnable {
+
+	private final int loopId; // id for this event loop
+
+	private Selector selector; // the selector of this event loop
+
+	// newly accepted channels waiting to be registered with the selector
+	// (a channel can only be registered safely from the thread of the selector)
+	private final Vector<SocketChannel> pendingQ;
+
+	// tasks handed over by other threads (e.g., finished CGI processes) to run in this event loop
+	private final ConcurrentLinkedQueue<Runnable> taskQ;
+
+	private volatile boolean stop = false; // set by the acceptor when the server shuts down
+
+	// the timeouts of the connections of this event loop
+	private final TimingWheel timingWheel;
+	private final ArrayList<TimingWheel.Timer> expiredTimers = new ArrayList<>();
+
+	// the I/O buffers of the connections of this event loop
+	private final BufferPool bufferPool;
+
+	// the handlers of the closed connections, reused for the next connections
+	private final ArrayDeque<SelectHTTPRequestHandler> freeHandlers;
+
+	// statistics
+	private volatile int connections = 0; // number of open connections
+	private volatile long handlersCreated = 0;
+	private volatile long handlersReused = 0;
+
+	public EventLoop(int loopId) throws IOException {
+		this.loopId = loopId;
+		selector = Selector.open();
+		pendingQ = new Vector<>();
+		taskQ = new ConcurrentLinkedQueue<>();
+		timingWheel = new TimingWheel(SelectHTTPServer.TIMER_TICK, SelectHTTPServer.TIMER_WHEEL_SIZE, System.currentTimeMillis());
+		bufferPool = new BufferPool(SelectHTTPRequestHandler.BUFFER_SIZE, SelectHTTPServer.BUFFERS_PER_SLAB);
+		freeHandlers = new ArrayDeque<>();
+	}
+
+	/**
+	 * Hand a newly accepted connection over to this event loop
+	 * Called by the acceptor thread
+	 * @param client
+	 */
+	public void register(SocketChannel client) {
+		pendingQ.add(client);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task in the thread of this event loop
+	 * Called by other threads
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		taskQ.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Ask the event loop to exit once all of its connections are closed
+	 * Called by the acceptor thread
+	 */
+	public void shutdown() {
+		stop = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+
+		// event loop
+		while (true) {
+
+			try {
+				// block to wait for events
+				// block until the next timer expires at most (0: no timer, block until woken up)
+				selector.select(timingWheel.nextTimeout(System.currentTimeMillis()));
+			} catch (IOException e) {
+				e.printStackTrace();
+				Util.panic(2, "Selector IOException generated!");
+			} catch (ClosedSelectorException e) {
+				e.printStackTrace();
+				Util.panic(3, "ClosedSelectorException generated!");
+			}
+
+			// register the connections handed over by the acceptor
+			registerPending();
+
+			// run the tasks handed over by other threads
+			runTasks();
+
+			// readyKeys is a set of ready events
+			Set<SelectionKey> readyKeys = selector.selectedKeys();
+
+			// create an iterator for the set
+			Iterator<SelectionKey> iterator = readyKeys.iterator();
+
+			// iterate over all events
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+
+				try {
+					if (key.isReadable()) {
+						handleRead(key);
+					} // end of isReadable
+
+					if (key.isValid() && key.isWritable()) {
+						handleWrite(key);
+					} // end of if isWritable
+
+				} catch (IOException | CancelledKeyException e) {
+
+					if (key != null) {
+						SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
+						if (handler != null) {
+							handler.close(key);
+						} else {
+							key.cancel();
+							try {
+								key.channel().close();
+							} catch (IOException closeex) {
+							}
+							SelectHTTPServer.releaseConnection();
+						}
+					}
+
+				}
+			}
+
+			// kill the connections whose timeout has expired
+			// (only the expired timers are visited, not every connection)
+			expiredTimers.clear();
+			timingWheel.expire(System.currentTimeMillis(), expiredTimers);
+			for (TimingWheel.Timer timer : expiredTimers) {
+				SelectionKey key = timer.getKey();
+				Util.DEBUG("Event loop " + loopId + " kills " + key.channel());
+				SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
+				handler.close(key);
+			}
+
+			if (stop && pendingQ.isEmpty()) {
+				// check whether there are still (not closed) keys, if not, close selector and
+				// exit the event loop
+				Iterator<SelectionKey> it = selector.keys().iterator();
+				boolean allClosed = true;
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
+					// idle persistent connections are closed right away
+					if (key.isValid() && handler != null && handler.isIdle()) {
+						handler.close(key);
+					}
+					if (key.isValid()) {
+						allClosed = false;
+					}
+				}
+				if (allClosed) {
+					try {
+						selector.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					Util.DEBUG("Event loop " + loopId + " shut down!");
+					return;
+				}
+			}
+
+		} // end of event loop
+	}
+
+	/**
+	 * Register every connection in pendingQ with the selector of this event loop
+	 */
+	private void registerPending() {
+		while (!pendingQ.isEmpty()) {
+			SocketChannel client = pendingQ.remove(0);
+			try {
+				// register the new connection with interests
+				SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ);
+
+				// save handler (a recycled one if any)
+				SelectHTTPRequestHandler handler = freeHandlers.poll();
+				if (handler == null) {
+					handler = new SelectHTTPRequestHandler(this);
+					handlersCreated++;
+				} else {
+					handlersReused++;
+				}
+				handler.open(clientKey);
+				clientKey.attach(handler);
+				connections++;
+				Util.DEBUG("Event loop " + loopId + " registered " + client);
+			} catch (IOException e) {
+				try {
+					client.close();
+				} catch (IOException closeex) {
+				}
+				SelectHTTPServer.releaseConnection();
+			}
+		}
+	}
+
+	/**
+	 * Run every task in taskQ
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = taskQ.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Take back the handler of a closed connection
+	 * Called by the handler when it closes its connection
+	 * @param handler
+	 */
+	void recycle(SelectHTTPRequestHandler handler) {
+		connections--;
+		SelectHTTPServer.releaseConnection();
+		// keep at most HANDLER_POOL_SIZE handlers, the rest is left to the GC
+		if (freeHandlers.size() < SelectHTTPServer.HANDLER_POOL_SIZE) {
+			freeHandlers.push(handler);
+		}
+	}
+
+	public TimingWheel getTimingWheel() {
+		return timingWheel;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	public String toString() {
+		return "<loop:" + loopId + ", connections:" + connections + ", handlersCreated:" + handlersCreated
+				+ ", handlersReused:" + handlersReused + ", freeHandlers:" + freeHandlers.size() + ", buffers:"
+				+ bufferPool + ">";
+	}
+
+	private void handleRead(SelectionKey key) throws IOException {
+
+		// a connection is ready to be read
+		Util.DEBUG("[>]handleRead");
+
+		SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
+		handler.handleRead(key);
+
+		Util.DEBUG("[-]handleRead");
+
+	}
+
+	private void handleWrite(SelectionKey key) throws IOException {
+
+		// a connection is ready to be written
+		Util.DEBUG("[>]handleWrite");
+
+		SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
+		handler.handleWrite(key);
+
+		Util.DEBUG("[-]handleWrite");
+
+	}
+}
@@ -0,0 +1,647 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A FastCGI client, shared by all of the servers
+ * Instead of forking a process per request, the scripts of a virtual host with
+ * FastCGIPass are run by a long-lived FastCGI responder (e.g., php-fpm, or the bundled
+ * FastCGIResponder) listening on a TCP address (host:port) or a unix domain socket
+ * (unix:/path). There is one client per address, which keeps up to MAX_CONNECTIONS
+ * connections open (FCGI_KEEP_CONN) and reuses them for the following requests.
+ * If the responder multiplexes connections (FCGI_MPXS_CONNS, asked with
+ * FCGI_GET_VALUES when a connection is opened), up to MAX_REQUESTS_PER_CONNECTION
+ * requests share a connection at the same time, otherwise a connection carries one
+ * request at a time. A reader thread per connection demultiplexes the records of the
+ * responder into the stdout of each request, which is read like the stdout of a CGI
+ * process, and the request body is written to the stdin of a request (FCGI_STDIN
+ * records) like to the stdin of a CGI process. The reader thread never waits for the
+ * consumer of a request, so that a slow client never holds up the other requests of the
+ * connection or the responder: up to STDOUT_MEMORY_LIMIT bytes of the stdout of a request
+ * are kept in memory, and the following bytes are spilled to a temp file until the
+ * consumer has caught up (as for RequestBody).
+ * Thread-safe.
+ */
+public class FastCGIClient {
+
+	// maximum number of connections to a responder
+	public static final int MAX_CONNECTIONS = 8;
+	// maximum number of concurrent requests on a connection if the responder multiplexes
+	public static final int MAX_REQUESTS_PER_CONNECTION = 16;
+	// maximum number of bytes of the stdout of a request kept in memory
+	public static final int STDOUT_MEMORY_LIMIT = 64 * 1024;
+
+	// record types and constants of the FastCGI specification
+	private static final int VERSION = 1;
+	private static final int BEGIN_REQUEST = 1;
+	private static final int ABORT_REQUEST = 2;
+	private static final int END_REQUEST = 3;
+	private static final int PARAMS = 4;
+	private static final int STDIN = 5;
+	private static final int STDOUT = 6;
+	private static final int STDERR = 7;
+	private static final int GET_VALUES = 9;
+	private static final int GET_VALUES_RESULT = 10;
+	private static final int RESPONDER = 1;
+	private static final int KEEP_CONN = 1;
+	private static final int HEADER_LENGTH = 8;
+	private static final int MAX_CONTENT_LENGTH = 65535;
+	private static final int MAX_PADDING_LENGTH = 255;
+	private static final String MPXS_CONNS = "FCGI_MPXS_CONNS";
+
+	// the clients of all of the addresses
+	private static final ConcurrentHashMap<String, FastCGIClient> clients = new ConcurrentHashMap<>();
+
+	private final String address;
+	private final SocketAddress socketAddress;
+	private final List<Connection> connections = new ArrayList<>(); // guarded by this
+	private int connecting = 0; // connections being opened, guarded by this
+
+	private FastCGIClient(String address) {
+		this.address = address;
+		this.socketAddress = parseAddress(address);
+	}
+
+	/**
+	 * @param address host:port or unix:/path
+	 * @return the client of a responder, created on first use
+	 */
+	public static FastCGIClient get(String address) {
+		return clients.computeIfAbsent(address, FastCGIClient::new);
+	}
+
+	/**
+	 * @return the clients of the responders that have been used
+	 */
+	public static Collection<FastCGIClient> getClients() {
+		return clients.values();
+	}
+
+	/**
+	 * @param address host:port or unix:/path
+	 * @throws IllegalArgumentException if the address is malformed
+	 */
+	public static SocketAddress parseAddress(String address) {
+		if (address.startsWith("unix:"))
+			return UnixDomainSocketAddress.of(address.substring(5));
+		int idx = address.lastIndexOf(':');
+		if (idx <= 0)
+			throw new IllegalArgumentException("FastCGI address must be host:port or unix:/path: " + address);
+		return new InetSocketAddress(address.substring(0, idx), Integer.parseInt(address.substring(idx + 1)));
+	}
+
+	/**
+	 * Send a request to the responder
+	 * Waits while every connection is busy
+	 * @param params the CGI environment variables
+	 * @return the request, whose stdin is the request body and whose stdout is the output of the script
+	 * @throws IOException if the responder cannot be reached
+	 */
+	public Request start(Map<String, String> params) throws IOException {
+		Request request = register();
+		try {
+			request.connection.begin(request.id, params);
+		} catch (IOException e) {
+			request.connection.close(e);
+			throw e;
+		}
+		return request;
+	}
+
+	/**
+	 * Find a connection with a free slot (opening one if needed) and register a new request on it
+	 * A new connection is opened without the lock of the client, after its place has been
+	 * reserved, so that a slow or unreachable responder does not hold up the requests that
+	 * can use a connection already open
+	 */
+	private Request register() throws IOException {
+		synchronized (this) {
+			while (true) {
+				for (Connection c : connections) {
+					if (c.requests.size() < c.maxRequests())
+						return c.newRequest();
+				}
+				if (connections.size() + connecting < MAX_CONNECTIONS) {
+					connecting++;
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("waiting for a FastCGI connection");
+				}
+			}
+		}
+
+		Connection c;
+		try {
+			c = new Connection(socketAddress);
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				connecting--;
+				notifyAll(); // the place of the connection is free again
+			}
+			throw e;
+		}
+		synchronized (this) {
+			connecting--;
+			connections.add(c);
+			c.start();
+			return c.newRequest();
+		}
+	}
+
+	public synchronized String toString() {
+		int active = 0;
+		for (Connection c : connections)
+			active += c.requests.size();
+		return "FastCGI " + address + ": " + connections.size() + " connections, " + active + " requests";
+	}
+
+	/**
+	 * A connection to the responder, kept open across requests
+	 */
+	private class Connection implements Runnable {
+		private final SocketChannel channel;
+		private final Map<Integer, Request> requests = new HashMap<>(); // guarded by the client
+		private volatile boolean multiplexed = false;
+		private boolean closed = false; // guarded by the client
+		private int nextId = 1;
+
+		Connection(SocketAddress socketAddress) throws IOException {
+			channel = SocketChannel.open(socketAddress);
+			// ask whether the responder multiplexes, the answer arrives in the reader thread
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeRecord(out, GET_VALUES, 0, encodeParams(Collections.singletonMap(MPXS_CONNS, "")));
+			try {
+				write(out);
+			} catch (IOException e) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Start the reader thread, once the connection is in the connections of the client
+		 * Called with the client locked
+		 */
+		void start() {
+			Thread reader = new Thread(this, "FastCGI " + address);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		int maxRequests() {
+			return multiplexed ? MAX_REQUESTS_PER_CONNECTION : 1;
+		}
+
+		/**
+		 * Called with the client locked
+		 */
+		Request newRequest() {
+			int id = nextId;
+			while (requests.containsKey(id))
+				id = id % MAX_CONTENT_LENGTH + 1;
+			nextId = id % MAX_CONTENT_LENGTH + 1;
+			Request request = new Request(this, id);
+			requests.put(id, request);
+			return request;
+		}
+
+		/**
+		 * Send the first records of a request: FCGI_BEGIN_REQUEST and FCGI_PARAMS
+		 */
+		void begin(int id, Map<String, String> params) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeRecord(out, BEGIN_REQUEST, id, new byte[] { 0, RESPONDER, KEEP_CONN, 0, 0, 0, 0, 0 });
+			byte[] encoded = encodeParams(params);
+			writeStream(out, PARAMS, id, encoded, encoded.length);
+			write(out);
+		}
+
+		/**
+		 * Send a FCGI_STDIN record (an empty one ends the stdin)
+		 */
+		void stdin(int id, byte[] b, int off, int len) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + len);
+			writeRecord(out, STDIN, id, b, off, len);
+			try {
+				write(out);
+			} catch (IOException e) {
+				close(e);
+				throw e;
+			}
+		}
+
+		void abort(int id) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeRecord(out, ABORT_REQUEST, id, new byte[0]);
+			try {
+				write(out);
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		private void write(ByteArrayOutputStream out) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+			// the records of different requests must not be interleaved
+			synchronized (this) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		}
+
+		/**
+		 * The reader thread: dispatch the records of the responder to the requests
+		 */
+		public void run() {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			// every record is read into the same buffers (the stdout is copied by the request)
+			byte[] content = new byte[MAX_CONTENT_LENGTH];
+			ByteBuffer contentBuffer = ByteBuffer.wrap(content);
+			ByteBuffer padding = ByteBuffer.allocate(MAX_PADDING_LENGTH);
+			try {
+				while (true) {
+					header.clear();
+					readFully(header);
+					int type = header.get(1) & 0xff;
+					int id = header.getShort(2) & 0xffff;
+					int contentLength = header.getShort(4) & 0xffff;
+					int paddingLength = header.get(6) & 0xff;
+					contentBuffer.clear().limit(contentLength);
+					readFully(contentBuffer);
+					padding.clear().limit(paddingLength);
+					readFully(padding);
+
+					if (type == GET_VALUES_RESULT) {
+						try {
+							multiplexed = "1".equals(decodeParams(Arrays.copyOf(content, contentLength)).get(MPXS_CONNS));
+						} catch (RuntimeException e) {
+							Util.DEBUG("FastCGI: malformed FCGI_GET_VALUES_RESULT from " + address);
+						}
+						synchronized (FastCGIClient.this) {
+							FastCGIClient.this.notifyAll(); // more slots
+						}
+						continue;
+					}
+					Request request;
+					synchronized (FastCGIClient.this) {
+						request = requests.get(id);
+					}
+					if (request == null)
+						continue; // a record of an unknown request is ignored
+					if (type == STDOUT && contentLength > 0) {
+						request.output(content, contentLength);
+					} else if (type == STDERR && contentLength > 0) {
+						// the errors of the script go to the log of the server
+						System.err.print(new String(content, 0, contentLength, StandardCharsets.ISO_8859_1));
+					} else if (type == END_REQUEST) {
+						synchronized (FastCGIClient.this) {
+							requests.remove(id);
+							FastCGIClient.this.notifyAll(); // a free slot
+						}
+						request.end(null);
+					}
+				}
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		private void readFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) == -1)
+					throw new EOFException("FastCGI connection closed by the responder");
+			}
+		}
+
+		/**
+		 * Close the connection and fail its pending requests
+		 */
+		void close(IOException e) {
+			List<Request> failed;
+			synchronized (FastCGIClient.this) {
+				if (closed)
+					return;
+				closed = true;
+				connections.remove(this);
+				failed = new ArrayList<>(requests.values());
+				requests.clear();
+				FastCGIClient.this.notifyAll();
+			}
+			Util.DEBUG("FastCGI connection to " + address + " closed: " + e);
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			for (Request request : failed)
+				request.end(e);
+		}
+	}
+
+	/**
+	 * A request sent to the responder
+	 */
+	public static class Request {
+		private final Connection connection;
+		private final int id;
+
+		// the stdout received so far, guarded by this: the bytes in memory, which come before the bytes in the file
+		private final ArrayDeque<byte[]> stdout = new ArrayDeque<>();
+		private int stdoutBytes = 0;
+		private int offset = 0; // in the first array of stdout
+		private boolean ended = false;
+		private boolean closed = false; // the consumer is gone, so the stdout is dropped
+		private IOException error;
+
+		// the spilled bytes of the stdout, from readPosition to writePosition, guarded by this
+		private FileChannel spill;
+		private long readPosition = 0, writePosition = 0;
+
+		private final OutputStream outputStream = new OutputStream() {
+			private boolean closed = false;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (closed)
+					throw new IOException("FastCGI stdin closed");
+				// one record per MAX_CONTENT_LENGTH bytes, since an empty record would end the stdin
+				for (int n; len > 0; off += n, len -= n) {
+					n = Math.min(len, MAX_CONTENT_LENGTH);
+					stdin(b, off, n);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				stdin(new byte[0], 0, 0);
+			}
+		};
+
+		private final InputStream inputStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Request.this.read(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Request.this.close();
+			}
+		};
+
+		private Request(Connection connection, int id) {
+			this.connection = connection;
+			this.id = id;
+		}
+
+		/**
+		 * @return the stdin of the script: the request body, which must be closed
+		 * (even if empty) for the responder to run the script
+		 */
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * @return the stdout of the script, until the responder ends the request, which must
+		 * be closed (so that the temp file is removed if the stdout has not been read to its end)
+		 */
+		public InputStream getInputStream() {
+			return inputStream;
+		}
+
+		/**
+		 * Ask the responder to stop the request, e.g., because the client has gone away
+		 * The stdout ends at once
+		 */
+		public void abort() {
+			synchronized (this) {
+				if (ended)
+					return;
+				ended = true;
+				drop();
+				notifyAll();
+			}
+			connection.abort(id);
+		}
+
+		private void stdin(byte[] b, int off, int len) throws IOException {
+			synchronized (this) {
+				// the responder may have ended (or the client aborted) the request without reading its stdin
+				if (ended)
+					throw new IOException("FastCGI request ended");
+			}
+			connection.stdin(id, b, off, len);
+		}
+
+		/**
+		 * Buffer the content of a FCGI_STDOUT record (it is copied, so content can be reused)
+		 * Never blocks on the consumer: past STDOUT_MEMORY_LIMIT bytes, the stdout is spilled
+		 * Called by the reader thread
+		 */
+		private void output(byte[] content, int length) {
+			try {
+				write(content, length);
+			} catch (IOException e) {
+				// the temp file cannot be written: only this request fails, not the connection
+				end(e);
+				connection.abort(id);
+			}
+		}
+
+		private synchronized void write(byte[] content, int length) throws IOException {
+			if (ended || closed)
+				return;
+			// spill if the consumer is STDOUT_MEMORY_LIMIT bytes behind, or has not caught up with the file yet
+			if (spill != null && readPosition < writePosition || stdoutBytes + length > STDOUT_MEMORY_LIMIT) {
+				if (spill == null)
+					spill = FileChannel.open(Files.createTempFile("fastcgi", ".tmp"), StandardOpenOption.READ,
+							StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+				ByteBuffer buffer = ByteBuffer.wrap(content, 0, length);
+				while (buffer.hasRemaining())
+					writePosition += spill.write(buffer, writePosition);
+			} else {
+				stdout.add(Arrays.copyOf(content, length));
+				stdoutBytes += length;
+			}
+			notifyAll();
+		}
+
+		private synchronized void end(IOException e) {
+			if (ended)
+				return;
+			ended = true;
+			error = e;
+			notifyAll();
+		}
+
+		private synchronized int read(byte[] b, int off, int len) throws IOException {
+			while (stdoutBytes == 0 && readPosition == writePosition && !ended && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("waiting for FastCGI output");
+				}
+			}
+			if (stdoutBytes > 0) {
+				byte[] first = stdout.peek();
+				int n = Math.min(len, first.length - offset);
+				System.arraycopy(first, offset, b, off, n);
+				offset += n;
+				stdoutBytes -= n;
+				if (offset == first.length) {
+					stdout.poll();
+					offset = 0;
+				}
+				return n;
+			}
+			if (readPosition < writePosition) {
+				int n = spill.read(ByteBuffer.wrap(b, off, (int) Math.min(len, writePosition - readPosition)), readPosition);
+				readPosition += n;
+				if (readPosition == writePosition) {
+					// the consumer has caught up, the file is reused from its start
+					readPosition = writePosition = 0;
+				}
+				return n;
+			}
+			// the end of the stdout
+			drop();
+			if (error != null && !closed)
+				throw error;
+			return -1;
+		}
+
+		/**
+		 * The consumer is done with the stdout: the bytes that have not been read, and
+		 * those that arrive until the responder ends the request, are dropped
+		 */
+		private synchronized void close() {
+			closed = true;
+			drop();
+			notifyAll();
+		}
+
+		/**
+		 * Drop the buffered stdout, and close (and so remove) the temp file if any
+		 * Called with the request locked
+		 */
+		private void drop() {
+			stdout.clear();
+			stdoutBytes = 0;
+			offset = 0;
+			readPosition = writePosition = 0;
+			if (spill != null) {
+				try {
+					spill.close();
+				} catch (IOException e) {
+					Util.DEBUG("cannot close the FastCGI stdout file: " + e);
+				}
+				spill = null;
+			}
+		}
+	}
+
+	/**
+	 * Write a record to out
+	 */
+	private static void writeRecord(ByteArrayOutputStream out, int type, int id, byte[] content) {
+		writeRecord(out, type, id, content, 0, content.length);
+	}
+
+	private static void writeRecord(ByteArrayOutputStream out, int type, int id, byte[] content, int off, int len) {
+		out.write(VERSION);
+		out.write(type);
+		out.write(id >> 8);
+		out.write(id);
+		out.write(len >> 8);
+		out.write(len);
+		out.write(0); // no padding
+		out.write(0);
+		out.write(content, off, len);
+	}
+
+	/**
+	 * Write a stream (records of at most MAX_CONTENT_LENGTH bytes, ended by an empty record) to out
+	 */
+	private static void writeStream(ByteArrayOutputStream out, int type, int id, byte[] content, int length) {
+		for (int off = 0; off < length; off += MAX_CONTENT_LENGTH)
+			writeRecord(out, type, id, content, off, Math.min(MAX_CONTENT_LENGTH, length - off));
+		writeRecord(out, type, id, new byte[0]);
+	}
+
+	/**
+	 * Encode name-value pairs (a length is 1 byte if less than 128, 4 bytes otherwise)
+	 */
+	private static byte[] encodeParams(Map<String, String> params) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			byte[] name = param.getKey().getBytes(StandardCharsets.ISO_8859_1);
+			byte[] value = param.getValue().getBytes(StandardCharsets.ISO_8859_1);
+			writeLength(out, name.length);
+			writeLength(out, value.length);
+			out.write(name, 0, name.length);
+			out.write(value, 0, value.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeLength(ByteArrayOutputStream out, int length) {
+		if (length < 128) {
+			out.write(length);
+		} else {
+			out.write((length >> 24) | 0x80);
+			out.write(length >> 16);
+			out.write(length >> 8);
+			out.write(length);
+		}
+	}
+
+	/**
+	 * Decode name-value pairs
+	 * @throws RuntimeException if malformed
+	 */
+	private static Map<String, String> decodeParams(byte[] b) {
+		Map<String, String> params = new HashMap<>();
+		ByteBuffer buffer = ByteBuffer.wrap(b);
+		while (buffer.hasRemaining()) {
+			int nameLength = readLength(buffer);
+			int valueLength = readLength(buffer);
+			String name = new String(b, buffer.position(), nameLength, StandardCharsets.ISO_8859_1);
+			String value = new String(b, buffer.position() + nameLength, valueLength, StandardCharsets.ISO_8859_1);
+			buffer.position(buffer.position() + nameLength + valueLength);
+			params.put(name, value);
+		}
+		return params;
+	}
+
+	private static int readLength(ByteBuffer buffer) {
+		if (buffer.get(buffer.position()) >= 0)
+			return buffer.get();
+		return buffer.getInt() & 0x7fffffff;
+	}
+}
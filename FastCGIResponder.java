@@ -0,0 +1,203 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A small FastCGI responder to test FastCGIPass without any outside service
+ * It listens on host:port or unix:/path, multiplexes its connections (FCGI_MPXS_CONNS)
+ * and answers every request in a worker thread with the CGI variables it received
+ * and its stdin, e.g., "SCRIPT_FILENAME=/root/test.cgi". If the query string is
+ * "sleep=<millisec>", it waits that long before answering (to test concurrent requests).
+ * The output is plain text, since the server sends the output of a script as it is.
+ * Usage: java FastCGIResponder.java [host:port | unix:/path] (default 127.0.0.1:9000)
+ */
+public class FastCGIResponder {
+
+	private static final int VERSION = 1;
+	private static final int BEGIN_REQUEST = 1;
+	private static final int ABORT_REQUEST = 2;
+	private static final int END_REQUEST = 3;
+	private static final int PARAMS = 4;
+	private static final int STDIN = 5;
+	private static final int STDOUT = 6;
+	private static final int GET_VALUES = 9;
+	private static final int GET_VALUES_RESULT = 10;
+	private static final int KEEP_CONN = 1;
+	private static final int REQUEST_COMPLETE = 0;
+
+	// the variables that are echoed
+	private static final String[] ECHOED = { "SCRIPT_FILENAME", "GATEWAY_INTERFACE", "REQUEST_METHOD", "QUERY_STRING",
+			"CONTENT_LENGTH", "SERVER_NAME", "SERVER_PORT", "REMOTE_ADDR" };
+
+	private static final ExecutorService workers = Executors.newCachedThreadPool();
+
+	public static void main(String[] args) throws IOException {
+		String address = args.length > 0 ? args[0] : "127.0.0.1:9000";
+		ServerSocketChannel server;
+		if (address.startsWith("unix:")) {
+			File path = new File(address.substring(5));
+			path.delete();
+			path.deleteOnExit();
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(path.getPath()));
+		} else {
+			int idx = address.lastIndexOf(':');
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(address.substring(0, idx), Integer.parseInt(address.substring(idx + 1))));
+		}
+		System.out.println("FastCGI responder listening at " + address);
+		while (true) {
+			SocketChannel channel = server.accept();
+			new Thread(() -> serve(channel)).start();
+		}
+	}
+
+	/**
+	 * A request being received or answered
+	 */
+	private static class Request {
+		final int id;
+		final boolean keepConn;
+		final ByteArrayOutputStream params = new ByteArrayOutputStream();
+		final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+		volatile boolean aborted = false;
+
+		Request(int id, boolean keepConn) {
+			this.id = id;
+			this.keepConn = keepConn;
+		}
+	}
+
+	/**
+	 * Read the records of a connection and start a worker for every complete request
+	 */
+	private static void serve(SocketChannel channel) {
+		Map<Integer, Request> requests = new ConcurrentHashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+			while (true) {
+				in.readUnsignedByte(); // version
+				int type = in.readUnsignedByte();
+				int id = in.readUnsignedShort();
+				int contentLength = in.readUnsignedShort();
+				int paddingLength = in.readUnsignedByte();
+				in.readUnsignedByte(); // reserved
+				byte[] content = new byte[contentLength];
+				in.readFully(content);
+				in.skipBytes(paddingLength);
+
+				Request request = requests.get(id);
+				switch (type) {
+				case GET_VALUES:
+					ByteArrayOutputStream result = new ByteArrayOutputStream();
+					writePair(result, "FCGI_MPXS_CONNS", "1");
+					writeRecord(channel, GET_VALUES_RESULT, 0, result.toByteArray());
+					break;
+				case BEGIN_REQUEST:
+					requests.put(id, new Request(id, (content[2] & KEEP_CONN) != 0));
+					break;
+				case ABORT_REQUEST:
+					// the request is ended by whoever removes it: here, or the worker when it is done
+					if (request != null && requests.remove(id) != null) {
+						request.aborted = true;
+						end(channel, request);
+					}
+					break;
+				case PARAMS:
+					if (request != null)
+						request.params.write(content);
+					break;
+				case STDIN:
+					if (request == null)
+						break;
+					if (contentLength > 0) {
+						request.stdin.write(content);
+					} else {
+						// the request is complete
+						workers.execute(() -> respond(channel, requests, request));
+					}
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// the server closed the connection
+		}
+	}
+
+	/**
+	 * Answer a request with its variables and stdin
+	 */
+	private static void respond(SocketChannel channel, Map<Integer, Request> requests, Request request) {
+		try {
+			Map<String, String> params = readPairs(request.params.toByteArray());
+			String query = params.getOrDefault("QUERY_STRING", "");
+			if (query.startsWith("sleep=")) {
+				Thread.sleep(Long.parseLong(query.substring(6)));
+			}
+			if (request.aborted)
+				return;
+			StringBuilder out = new StringBuilder();
+			for (String name : ECHOED)
+				out.append(name + "=" + params.getOrDefault(name, "") + "\n");
+			out.append("pid=" + ProcessHandle.current().pid() + " thread=" + Thread.currentThread().getName() + "\n");
+			byte[] body = out.toString().getBytes(StandardCharsets.ISO_8859_1);
+			writeRecord(channel, STDOUT, request.id, body);
+			byte[] stdin = request.stdin.toByteArray();
+			for (int off = 0; off < stdin.length; off += 65535)
+				writeRecord(channel, STDOUT, request.id, Arrays.copyOfRange(stdin, off, Math.min(stdin.length, off + 65535)));
+			writeRecord(channel, STDOUT, request.id, new byte[0]);
+			if (requests.remove(request.id) != null)
+				end(channel, request);
+			if (!request.keepConn)
+				channel.close();
+		} catch (IOException e) {
+			// the server closed the connection
+		} catch (InterruptedException | NumberFormatException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void end(SocketChannel channel, Request request) throws IOException {
+		writeRecord(channel, END_REQUEST, request.id, new byte[] { 0, 0, 0, 0, REQUEST_COMPLETE, 0, 0, 0 });
+	}
+
+	private static void writeRecord(SocketChannel channel, int type, int id, byte[] content) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8 + content.length);
+		buffer.put((byte) VERSION).put((byte) type).putShort((short) id).putShort((short) content.length);
+		buffer.put((byte) 0).put((byte) 0).put(content).flip();
+		// the records of the workers of a connection must not be interleaved
+		synchronized (channel) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	private static void writePair(ByteArrayOutputStream out, String name, String value) {
+		out.write(name.length());
+		out.write(value.length());
+		out.writeBytes(name.getBytes(StandardCharsets.ISO_8859_1));
+		out.writeBytes(value.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static Map<String, String> readPairs(byte[] b) {
+		Map<String, String> pairs = new HashMap<>();
+		ByteBuffer buffer = ByteBuffer.wrap(b);
+		while (buffer.hasRemaining()) {
+			int nameLength = readLength(buffer);
+			int valueLength = readLength(buffer);
+			pairs.put(new String(b, buffer.position(), nameLength, StandardCharsets.ISO_8859_1),
+					new String(b, buffer.position() + nameLength, valueLength, StandardCharsets.ISO_8859_1));
+			buffer.position(buffer.position() + nameLength + valueLength);
+		}
+		return pairs;
+	}
+
+	private static int readLength(ByteBuffer buffer) {
+		if (buffer.get(buffer.position()) >= 0)
+			return buffer.get();
+		return buffer.getInt() & 0x7fffffff;
+	}
+}
@@ -0,0 +1,269 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A size-bounded cache for static files shared by all of the servers
+ * The key is the file and the value is an immutable entry holding the content of the file.
+ * The size of the cache is the total number of bytes of the cached contents.
+ *
+ * Lookups never take a lock: the entries live in a ConcurrentHashMap and a hit only sets
+ * the "referenced" bit of the entry. Insertions are serialized by the lock of the cache
+ * and evict with the CLOCK algorithm (an approximation of LRU): the clock hand skips and
+ * clears referenced entries, and evicts the first entry that has not been referenced since
+ * the hand last passed it. A file larger than the whole cache is never cached.
+ *
+ * CacheWatcher removes the entries of the files that are modified or deleted.
+ */
+public class FileCache {
+
+	/**
+	 * A cached file. The content must never be modified once the entry is created,
+	 * so it can be written to a socket by any number of threads without a lock
+	 */
+	public static final class Entry {
+		private final File file;
+		private final byte[] content;
+		private final String canonicalPath; // used to match the file change events
+		private final long lastModified; // mtime of the file when it was read
+		private final byte[] lastModifiedHeader; // formatted once for every response of the entry
+		private final String etag; // see ETag
+		private final byte[] etagHeader; // formatted once for every response of the entry
+		volatile boolean referenced = true; // set on every hit, cleared by the clock hand
+
+		Entry(File file, byte[] content, long lastModified) {
+			this.file = file;
+			this.content = content;
+			this.lastModified = lastModified;
+			this.lastModifiedHeader = HTTPDate.lastModifiedHeader(lastModified);
+			this.etag = ETag.of(lastModified, content.length);
+			this.etagHeader = ETag.header(etag);
+			String path;
+			try {
+				path = file.getCanonicalPath();
+			} catch (IOException e) {
+				path = file.getAbsolutePath();
+			}
+			this.canonicalPath = path;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the Last-Modified header line of the entry (shared bytes that must not be modified)
+		 */
+		public byte[] getLastModifiedHeader() {
+			return lastModifiedHeader;
+		}
+
+		/**
+		 * @return the entity tag of the entry, with its quotes
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * @return the ETag header line of the entry (shared bytes that must not be modified)
+		 */
+		public byte[] getETagHeader() {
+			return etagHeader;
+		}
+
+		public int size() {
+			return content.length;
+		}
+
+		/**
+		 * whether the file on disk is still the one that has been cached
+		 */
+		boolean isValid() {
+			return file.isFile() && file.lastModified() == lastModified && file.length() == content.length;
+		}
+	}
+
+	private final long maxSize; // in bytes
+	private volatile long currentSize = 0; // in bytes, only modified under the lock
+
+	private final ConcurrentHashMap<File, Entry> entries;
+	// the clock of the CLOCK algorithm, only accessed under the lock
+	// (it may still hold entries that have been replaced or removed, which are skipped,
+	// until it is compacted)
+	private final ArrayDeque<Entry> clock;
+
+	// statistics
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public FileCache(long maxSize) {
+		this.maxSize = maxSize;
+		entries = new ConcurrentHashMap<>();
+		clock = new ArrayDeque<>();
+	}
+
+	/**
+	 * Look up a file in the cache without taking any lock
+	 * @param file
+	 * @return the entry of the file, or null if it is not cached
+	 */
+	public Entry get(File file) {
+		Entry entry = entries.get(file);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		// avoid writing the shared cache line if the bit is already set
+		if (!entry.referenced)
+			entry.referenced = true;
+		hits.increment();
+		return entry;
+	}
+
+	/**
+	 * Put a file into the cache, evicting files that have not been used recently if needed
+	 * @param file
+	 * @param content must not be modified afterwards
+	 * @param lastModified mtime of the file taken before its content was read
+	 * @return true if the file is cached, false if it is larger than the cache
+	 */
+	public boolean put(File file, byte[] content, long lastModified) {
+		if (!fits(content.length)) {
+			return false;
+		}
+		// resolve the canonical path before taking the lock
+		return insert(new Entry(file, content, lastModified));
+	}
+
+	private synchronized boolean insert(Entry entry) {
+		File file = entry.file;
+		byte[] content = entry.content;
+
+		// evict until the new content fits
+		long size = currentSize;
+		Entry old = entries.get(file);
+		if (old != null) {
+			size -= old.size();
+		}
+		while (size + content.length > maxSize && !clock.isEmpty()) {
+			Entry victim = clock.poll();
+			// skip the entries that have been replaced or already removed
+			if (victim == old || entries.get(victim.file) != victim)
+				continue;
+			// second chance for the entries referenced since the hand last passed them
+			if (victim.referenced) {
+				victim.referenced = false;
+				clock.add(victim);
+				continue;
+			}
+			entries.remove(victim.file, victim);
+			size -= victim.size();
+			evictions.increment();
+			Util.DEBUG("cache evicts " + victim.file);
+		}
+
+		entries.put(file, entry);
+		clock.add(entry);
+		currentSize = size + content.length;
+		compactClock();
+		return true;
+	}
+
+	/**
+	 * Drop the entries that have been replaced or removed from the clock, once they are as many
+	 * as the live ones, so the clock (and the contents it holds) stays within twice the entries
+	 * Called under the lock
+	 */
+	private void compactClock() {
+		if (clock.size() > 2 * entries.size())
+			clock.removeIf(e -> entries.get(e.file) != e);
+	}
+
+	/**
+	 * Remove an entry from the cache (if it has not been replaced)
+	 * @param entry
+	 */
+	private synchronized void remove(Entry entry) {
+		if (entries.remove(entry.file, entry)) {
+			currentSize -= entry.size();
+			Util.DEBUG("cache invalidates " + entry.file);
+			compactClock();
+		}
+	}
+
+	/**
+	 * Remove every entry of the file (or of the files under the directory) that has changed
+	 * Called by CacheWatcher when a file change event is received
+	 * @param path canonical path of the changed file or directory
+	 */
+	public void invalidate(String path) {
+		for (Entry entry : entries.values()) {
+			if (entry.canonicalPath.equals(path) || entry.canonicalPath.startsWith(path + File.separator)) {
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Check every entry against the mtime and size of its file, and remove the stale ones
+	 * Called periodically by CacheWatcher (never on the request path)
+	 */
+	public void validate() {
+		for (Entry entry : entries.values()) {
+			if (!entry.isValid()) {
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Whether a file of the given size can ever be cached
+	 * @param size in bytes
+	 */
+	public boolean fits(long size) {
+		return size <= maxSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getCurrentSize() {
+		return currentSize;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the number of entries in the clock, including the dead ones not yet compacted
+	 */
+	synchronized int getClockSize() {
+		return clock.size();
+	}
+
+	public String toString() {
+		return "<cacheSize:" + currentSize + ", cacheMaxSize:" + maxSize + ", entries:" + entries.size()
+				+ ", hits:" + hits.sum() + ", misses:" + misses.sum() + ", evictions:" + evictions.sum() + ">";
+	}
+}
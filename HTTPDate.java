@@ -0,0 +1,200 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formatting and parsing of HTTP dates (RFC 1123, e.g., "Sun, 06 Nov 1994 08:49:37 GMT")
+ * shared by all of the servers, without SimpleDateFormat
+ * The Date header only changes once per second, so it is formatted at most once per
+ * second into pre-encoded bytes that are shared by every response of that second.
+ * The Last-Modified header is formatted once per cache entry (see FileCache.Entry).
+ * Thread-safe: the shared bytes are immutable and published through a volatile field.
+ */
+public final class HTTPDate {
+
+	private static final byte[][] DAYS = { ascii("Sun"), ascii("Mon"), ascii("Tue"), ascii("Wed"), ascii("Thu"),
+			ascii("Fri"), ascii("Sat") };
+	private static final byte[][] MONTHS = { ascii("Jan"), ascii("Feb"), ascii("Mar"), ascii("Apr"), ascii("May"),
+			ascii("Jun"), ascii("Jul"), ascii("Aug"), ascii("Sep"), ascii("Oct"), ascii("Nov"), ascii("Dec") };
+
+	// length of "Sun, 06 Nov 1994 08:49:37 GMT"
+	public static final int LENGTH = 29;
+
+	private static final byte[] DATE = ascii("Date: ");
+	private static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+
+	/**
+	 * The Date header of a second
+	 */
+	private static final class Clock {
+		final long second; // since the epoch
+		final byte[] header;
+
+		Clock(long second) {
+			this.second = second;
+			header = header(DATE, second * 1000);
+		}
+	}
+
+	private static volatile Clock clock = new Clock(System.currentTimeMillis() / 1000);
+
+	private HTTPDate() {
+	}
+
+	/**
+	 * The Date header of the current time, e.g., "Date: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+	 * @return shared bytes that must not be modified
+	 */
+	public static byte[] dateHeader() {
+		long second = System.currentTimeMillis() / 1000;
+		Clock c = clock;
+		if (c.second != second) {
+			// several threads may format the same second, which is harmless
+			c = new Clock(second);
+			clock = c;
+		}
+		return c.header;
+	}
+
+	/**
+	 * The Last-Modified header of a time, e.g., "Last-Modified: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+	 * @param millis since the epoch
+	 */
+	public static byte[] lastModifiedHeader(long millis) {
+		return header(LAST_MODIFIED, millis);
+	}
+
+	/**
+	 * @param millis since the epoch
+	 * @return the HTTP date of a time, e.g., "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
+	public static String format(long millis) {
+		byte[] b = new byte[LENGTH];
+		format(millis, b, 0);
+		return new String(b, StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] header(byte[] name, long millis) {
+		byte[] b = new byte[name.length + LENGTH + 2];
+		System.arraycopy(name, 0, b, 0, name.length);
+		format(millis, b, name.length);
+		b[b.length - 2] = '\r';
+		b[b.length - 1] = '\n';
+		return b;
+	}
+
+	/**
+	 * Write the HTTP date of a time into b[offset, offset + LENGTH)
+	 * @param millis since the epoch
+	 */
+	public static void format(long millis, byte[] b, int offset) {
+		long seconds = Math.floorDiv(millis, 1000L);
+		long days = Math.floorDiv(seconds, 86400L);
+		int secondOfDay = (int) Math.floorMod(seconds, 86400L);
+
+		// 1970-01-01 is a Thursday
+		byte[] day = DAYS[(int) Math.floorMod(days + 4, 7L)];
+
+		// the civil date of the days since the epoch, see
+		// http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097L);
+		long doe = z - era * 146097; // [0, 146096]
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365; // [0, 399]
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100); // [0, 365]
+		long mp = (5 * doy + 2) / 153; // [0, 11], starting from March
+		int dayOfMonth = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+		int i = offset;
+		b[i++] = day[0];
+		b[i++] = day[1];
+		b[i++] = day[2];
+		b[i++] = ',';
+		b[i++] = ' ';
+		i = digits(dayOfMonth, 2, b, i);
+		b[i++] = ' ';
+		byte[] mon = MONTHS[month - 1];
+		b[i++] = mon[0];
+		b[i++] = mon[1];
+		b[i++] = mon[2];
+		b[i++] = ' ';
+		i = digits(year, 4, b, i);
+		b[i++] = ' ';
+		i = digits(secondOfDay / 3600, 2, b, i);
+		b[i++] = ':';
+		i = digits(secondOfDay / 60 % 60, 2, b, i);
+		b[i++] = ':';
+		i = digits(secondOfDay % 60, 2, b, i);
+		b[i++] = ' ';
+		b[i++] = 'G';
+		b[i++] = 'M';
+		b[i++] = 'T';
+	}
+
+	private static int digits(int value, int n, byte[] b, int offset) {
+		for (int i = offset + n - 1; i >= offset; i--) {
+			b[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return offset + n;
+	}
+
+	/**
+	 * Parse an HTTP date in b[start, end) without allocating
+	 * Only the RFC 1123 format is accepted (the day name is not checked against the date)
+	 * @return millis since the epoch, or -1 if malformed
+	 */
+	public static long parse(byte[] b, int start, int end) {
+		if (end - start != LENGTH)
+			return -1;
+		int i = start;
+		if (b[i + 3] != ',' || b[i + 4] != ' ' || b[i + 7] != ' ' || b[i + 11] != ' ' || b[i + 16] != ' '
+				|| b[i + 19] != ':' || b[i + 22] != ':' || b[i + 25] != ' ' || b[i + 26] != 'G' || b[i + 27] != 'M'
+				|| b[i + 28] != 'T')
+			return -1;
+
+		int dayOfMonth = number(b, i + 5, 2);
+		int month = -1;
+		for (int m = 0; m < MONTHS.length; m++) {
+			if (b[i + 8] == MONTHS[m][0] && b[i + 9] == MONTHS[m][1] && b[i + 10] == MONTHS[m][2]) {
+				month = m + 1;
+				break;
+			}
+		}
+		int year = number(b, i + 12, 4);
+		int hour = number(b, i + 17, 2);
+		int minute = number(b, i + 20, 2);
+		int second = number(b, i + 23, 2);
+		if (dayOfMonth < 1 || dayOfMonth > 31 || month == -1 || year < 0 || hour < 0 || hour > 23 || minute < 0
+				|| minute > 59 || second < 0 || second > 60)
+			return -1;
+
+		// the days since the epoch of the civil date, see
+		// http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+		long y = month <= 2 ? year - 1 : year;
+		long era = Math.floorDiv(y, 400L);
+		long yoe = y - era * 400; // [0, 399]
+		long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1; // [0, 365]
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy; // [0, 146096]
+		long days = era * 146097 + doe - 719468;
+
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+	}
+
+	/**
+	 * @return the n-digit decimal number in b[offset, offset + n), or -1 if it is not one
+	 */
+	private static int number(byte[] b, int offset, int n) {
+		int value = 0;
+		for (int i = offset; i < offset + n; i++) {
+			if (b[i] < '0' || b[i] > '9')
+				return -1;
+			value = value * 10 + (b[i] - '0');
+		}
+		return value;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
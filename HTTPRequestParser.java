@@ -0,0 +1,423 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An incremental parser for the request line and the headers of an HTTP request,
+ * shared by the request handlers of all of the servers
+ * The bytes are fed with parse() as they arrive, and the parser resumes where it
+ * stopped, so a request may be split across any number of reads. The bytes are
+ * copied into a fixed array and only the offsets of the method, path, query and
+ * the headers we use (Host, User-Agent, Content-Length, Connection,
+ * If-Modified-Since, If-None-Match, Range and If-Range) are recorded: no String is created unless it is asked for,
+ * and a parser is reset and reused for the next request, so parsing allocates nothing.
+ * Lines may end with \r\n or \n. Empty lines before the request line are ignored.
+ * Not thread-safe: a parser is used by one request handler.
+ */
+public class HTTPRequestParser {
+
+	// maximum size (in bytes) of the request line and the headers
+	public static final int MAX_HEADER_SIZE = 8192;
+
+	// results of parse()
+	public static final int INCOMPLETE = 0; // need more bytes
+	public static final int COMPLETE = 1; // the request line and the headers have been parsed
+	public static final int ERROR = -1; // malformed or too large request
+
+	// methods
+	public static final int UNKNOWN_METHOD = 0;
+	public static final int GET = 1;
+	public static final int POST = 2;
+
+	// states of the parser
+	private static final int METHOD = 0;
+	private static final int TARGET = 1;
+	private static final int VERSION = 2;
+	private static final int HEADER_START = 3; // the start of a header line (or of the empty line)
+	private static final int HEADER_NAME = 4;
+	private static final int HEADER_VALUE = 5;
+
+	// lower case names and values matched case-insensitively
+	private static final byte[] GET_BYTES = ascii("get");
+	private static final byte[] POST_BYTES = ascii("post");
+	private static final byte[] HTTP11_BYTES = ascii("http/1.1");
+	private static final byte[] HOST = ascii("host");
+	private static final byte[] USER_AGENT = ascii("user-agent");
+	private static final byte[] CONTENT_LENGTH = ascii("content-length");
+	private static final byte[] CONNECTION = ascii("connection");
+	private static final byte[] IF_MODIFIED_SINCE = ascii("if-modified-since");
+	private static final byte[] IF_NONE_MATCH = ascii("if-none-match");
+	private static final byte[] RANGE = ascii("range");
+	private static final byte[] IF_RANGE = ascii("if-range");
+	private static final byte[] CLOSE = ascii("close");
+	private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+	private static final byte[] PHONE = ascii("phone"); // also matches iphone
+
+	private final byte[] head = new byte[MAX_HEADER_SIZE]; // the bytes of the request line and headers (without \r\n)
+	private int length; // number of bytes in head
+	private int state;
+	private int result;
+	private boolean cr; // a \r has been read, so the next byte must be \n
+
+	// offsets in head, an end offset is exclusive
+	private int method;
+	private int targetStart, targetEnd;
+	private int queryStart; // -1 if there is no query string
+	private int versionStart, versionEnd;
+	private int nameStart, nameEnd, valueStart, valueEnd; // the current header line
+	private int hostStart, hostEnd; // -1 if the header is not present
+	private int userAgentStart, userAgentEnd;
+	private int ifModifiedSinceStart, ifModifiedSinceEnd;
+	private int ifNoneMatchStart, ifNoneMatchEnd;
+	private int rangeStart, rangeEnd;
+	private int ifRangeStart, ifRangeEnd;
+	private long contentLength;
+	private boolean connectionClose, connectionKeepAlive;
+
+	public HTTPRequestParser() {
+		reset();
+	}
+
+	/**
+	 * Forget the current request, so that the parser can be used for the next one
+	 */
+	public void reset() {
+		length = 0;
+		state = METHOD;
+		result = INCOMPLETE;
+		cr = false;
+		method = UNKNOWN_METHOD;
+		targetStart = targetEnd = 0;
+		queryStart = -1;
+		versionStart = versionEnd = 0;
+		hostStart = hostEnd = -1;
+		userAgentStart = userAgentEnd = -1;
+		ifModifiedSinceStart = ifModifiedSinceEnd = -1;
+		ifNoneMatchStart = ifNoneMatchEnd = -1;
+		rangeStart = rangeEnd = -1;
+		ifRangeStart = ifRangeEnd = -1;
+		contentLength = -1;
+		connectionClose = connectionKeepAlive = false;
+	}
+
+	/**
+	 * Consume the bytes of buffer (from its position to its limit) until the end of the headers
+	 * The bytes after the headers (i.e., the body or the next pipelined request) are left in buffer
+	 * @param buffer in read mode
+	 * @return COMPLETE, INCOMPLETE (all of the bytes are consumed) or ERROR
+	 */
+	public int parse(ByteBuffer buffer) {
+		if (result != INCOMPLETE)
+			return result;
+
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+
+			if (b == '\r') {
+				if (cr)
+					return result = ERROR;
+				cr = true;
+				continue;
+			}
+			if (b == '\n') {
+				cr = false;
+				if (endOfLine())
+					return result;
+				continue;
+			}
+			// \r must be followed by \n
+			if (cr || length == head.length)
+				return result = ERROR;
+
+			switch (state) {
+			case METHOD:
+				if (b == ' ' || b == '\t') {
+					if (length == 0)
+						return result = ERROR;
+					if (equalsIgnoreCase(0, length, GET_BYTES))
+						method = GET;
+					else if (equalsIgnoreCase(0, length, POST_BYTES))
+						method = POST;
+					targetStart = length + 1;
+					state = TARGET;
+				}
+				break;
+			case TARGET:
+				if (b == ' ' || b == '\t') {
+					if (length == targetStart)
+						return result = ERROR;
+					targetEnd = length;
+					versionStart = length + 1;
+					state = VERSION;
+				} else if (b == '?' && queryStart == -1) {
+					queryStart = length + 1;
+				}
+				break;
+			case VERSION:
+				break;
+			case HEADER_START:
+				// a line folded into the previous header (obsolete) or a header without a name
+				if (b == ' ' || b == '\t' || b == ':')
+					return result = ERROR;
+				nameStart = length;
+				state = HEADER_NAME;
+				break;
+			case HEADER_NAME:
+				if (b == ':') {
+					nameEnd = length;
+					valueStart = valueEnd = -1;
+					state = HEADER_VALUE;
+				}
+				break;
+			case HEADER_VALUE:
+				// leading and trailing white spaces are not part of the value
+				if (b != ' ' && b != '\t') {
+					if (valueStart == -1)
+						valueStart = length;
+					valueEnd = length + 1;
+				}
+				break;
+			}
+			head[length++] = b;
+		}
+		return INCOMPLETE;
+	}
+
+	/**
+	 * Handle the end of a line
+	 * @return true if parsing stops (the headers are complete or the request is malformed)
+	 */
+	private boolean endOfLine() {
+		switch (state) {
+		case METHOD:
+			// empty lines before the request line are ignored
+			if (length == 0)
+				return false;
+			result = ERROR;
+			return true;
+		case TARGET:
+			// no version, i.e., HTTP/0.9
+			if (length == targetStart) {
+				result = ERROR;
+				return true;
+			}
+			targetEnd = length;
+			versionStart = versionEnd = length;
+			state = HEADER_START;
+			return false;
+		case VERSION:
+			versionEnd = length;
+			state = HEADER_START;
+			return false;
+		case HEADER_START:
+			// the empty line, i.e., the end of the headers
+			result = COMPLETE;
+			return true;
+		case HEADER_NAME:
+			// a header line without ':'
+			result = ERROR;
+			return true;
+		default: // HEADER_VALUE
+			if (!endOfHeader()) {
+				result = ERROR;
+				return true;
+			}
+			state = HEADER_START;
+			return false;
+		}
+	}
+
+	/**
+	 * Record the header of the current line if it is one that we use
+	 * @return false if the value is malformed
+	 */
+	private boolean endOfHeader() {
+		// trailing white spaces of the name are ignored
+		while (nameEnd > nameStart && (head[nameEnd - 1] == ' ' || head[nameEnd - 1] == '\t'))
+			nameEnd--;
+		if (valueStart == -1)
+			valueStart = valueEnd = nameEnd;
+
+		if (equalsIgnoreCase(nameStart, nameEnd, HOST)) {
+			hostStart = valueStart;
+			hostEnd = valueEnd;
+		} else if (equalsIgnoreCase(nameStart, nameEnd, USER_AGENT)) {
+			userAgentStart = valueStart;
+			userAgentEnd = valueEnd;
+		} else if (equalsIgnoreCase(nameStart, nameEnd, CONTENT_LENGTH)) {
+			if (valueStart == valueEnd)
+				return false;
+			long value = 0;
+			for (int i = valueStart; i < valueEnd; i++) {
+				if (head[i] < '0' || head[i] > '9')
+					return false;
+				// a length that does not fit in a long is malformed, any other one is checked against LimitRequestBody
+				if (value > (Long.MAX_VALUE - 9) / 10)
+					return false;
+				value = value * 10 + (head[i] - '0');
+			}
+			contentLength = value;
+		} else if (equalsIgnoreCase(nameStart, nameEnd, CONNECTION)) {
+			connectionClose = containsIgnoreCase(valueStart, valueEnd, CLOSE);
+			connectionKeepAlive = containsIgnoreCase(valueStart, valueEnd, KEEP_ALIVE);
+		} else if (equalsIgnoreCase(nameStart, nameEnd, IF_MODIFIED_SINCE)) {
+			ifModifiedSinceStart = valueStart;
+			ifModifiedSinceEnd = valueEnd;
+		} else if (equalsIgnoreCase(nameStart, nameEnd, IF_NONE_MATCH)) {
+			ifNoneMatchStart = valueStart;
+			ifNoneMatchEnd = valueEnd;
+		} else if (equalsIgnoreCase(nameStart, nameEnd, RANGE)) {
+			rangeStart = valueStart;
+			rangeEnd = valueEnd;
+		} else if (equalsIgnoreCase(nameStart, nameEnd, IF_RANGE)) {
+			ifRangeStart = valueStart;
+			ifRangeEnd = valueEnd;
+		}
+		return true;
+	}
+
+	/**
+	 * whether head[start, end) equals a lower case ASCII string, ignoring case
+	 */
+	private boolean equalsIgnoreCase(int start, int end, byte[] lower) {
+		if (end - start != lower.length)
+			return false;
+		for (int i = 0; i < lower.length; i++) {
+			// setting 0x20 turns an upper case letter into lower case (and never turns a non-letter into a letter)
+			if ((head[start + i] | 0x20) != lower[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * whether head[start, end) contains a lower case ASCII string, ignoring case
+	 */
+	private boolean containsIgnoreCase(int start, int end, byte[] lower) {
+		for (int i = start; i + lower.length <= end; i++) {
+			if (equalsIgnoreCase(i, i + lower.length, lower))
+				return true;
+		}
+		return false;
+	}
+
+	private String string(int start, int end) {
+		return new String(head, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * whether no byte of the current request has been consumed
+	 */
+	public boolean isEmpty() {
+		return length == 0 && state == METHOD;
+	}
+
+	public boolean isComplete() {
+		return result == COMPLETE;
+	}
+
+	/**
+	 * @return GET, POST or UNKNOWN_METHOD
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	public boolean isHTTP11() {
+		return equalsIgnoreCase(versionStart, versionEnd, HTTP11_BYTES);
+	}
+
+	/**
+	 * whether the connection should be kept open after the response
+	 * HTTP/1.1 connections are persistent unless the client sends Connection: close,
+	 * and other connections are not unless the client sends Connection: keep-alive
+	 */
+	public boolean isKeepAlive() {
+		if (connectionClose)
+			return false;
+		return connectionKeepAlive || isHTTP11();
+	}
+
+	/**
+	 * @return the request target without the query string
+	 */
+	public String getPath() {
+		return string(targetStart, queryStart == -1 ? targetEnd : queryStart - 1);
+	}
+
+	/**
+	 * @return the string after ? in the request target, or null if there is none
+	 */
+	public String getQuery() {
+		return queryStart == -1 ? null : string(queryStart, targetEnd);
+	}
+
+	/**
+	 * @return the Host header without the port number, or null if it is not present
+	 */
+	public String getHost() {
+		if (hostStart == -1)
+			return null;
+		int end = hostStart;
+		while (end < hostEnd && head[end] != ':')
+			end++;
+		return string(hostStart, end);
+	}
+
+	public boolean hasUserAgent() {
+		return userAgentStart != -1;
+	}
+
+	/**
+	 * whether the User-Agent header is present and is a phone
+	 */
+	public boolean isPhoneUserAgent() {
+		return userAgentStart != -1 && containsIgnoreCase(userAgentStart, userAgentEnd, PHONE);
+	}
+
+	/**
+	 * @return the Content-Length header, or -1 if it is not present
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public boolean hasIfModifiedSince() {
+		return ifModifiedSinceStart != -1;
+	}
+
+	/**
+	 * @return the If-Modified-Since header in millisec since the epoch, or -1 if it is not present or malformed
+	 */
+	public long getIfModifiedSince() {
+		return ifModifiedSinceStart == -1 ? -1 : HTTPDate.parse(head, ifModifiedSinceStart, ifModifiedSinceEnd);
+	}
+
+	/**
+	 * @return the If-None-Match header, or null if it is not present
+	 */
+	public String getIfNoneMatch() {
+		return ifNoneMatchStart == -1 ? null : string(ifNoneMatchStart, ifNoneMatchEnd);
+	}
+
+	/**
+	 * @return the Range header, or null if it is not present
+	 */
+	public String getRange() {
+		return rangeStart == -1 ? null : string(rangeStart, rangeEnd);
+	}
+
+	/**
+	 * @return the If-Range header, or null if it is not present
+	 */
+	public String getIfRange() {
+		return ifRangeStart == -1 ? null : string(ifRangeStart, ifRangeEnd);
+	}
+
+	public String toString() {
+		return string(0, length);
+	}
+}
@@ -5,7 +5,9 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.*;
 import org.apache.commons.cli.*;
 
 class HTTPServer {
@@ -21,13 +23,33 @@ class HTTPServer {
 	/* the default virtual host if no Host header is specified*/
 	public static VirtualHost defaultVHost;
 
-	public static HashMap<File, byte[]> cache; // cache, where key is the file and value is the content
-	public static int cacheCurrentSize = 0;
-	public static int cacheMaxSize = 0;
+	public static FileCache cache; // cache, where key is the file and value is the content (null if no CacheSize)
+
+	// the resolved static requests (null if OpenFileCache off), and their number and valid time (in millisec) by default
+	// based on OpenFileCache <max entries> [<valid seconds>] in the configuration file
+	public static final int OPEN_FILE_CACHE_MAX = 1000;
+	public static final long OPEN_FILE_CACHE_VALID = 5000;
+	public static OpenFileCache openFileCache = new OpenFileCache(OPEN_FILE_CACHE_MAX, OPEN_FILE_CACHE_VALID);
+
+	// maximum size (in bytes) of a request body, larger requests get 413, 0 means unlimited (default 1 GB)
+	// based on LimitRequestBody <bytes> in the configuration file
+	public static long limitRequestBody = 1L << 30;
+
+	// the threads that copy the request bodies to the stdin of the CGI scripts, while
+	// the handler threads read the bodies from the clients and then the outputs of the scripts
+	public static ExecutorService cgiExecutor;
 
 	// maximum number of connections that the server will accept concurrently
 	public static final int MAX_THREAD = 100;
-	public static int numThreads = 0;
+	// the same with ExecutionModel virtual, where a thread per connection is cheap
+	public static final int MAX_VIRTUAL_THREAD = 10000;
+	// a slot per connection being served: the main thread takes one before accepting a
+	// connection (so it stops accepting at the limit), and the handler gives it back
+	public static Semaphore threadSlots;
+
+	// whether a connection runs on a new platform thread, or on a virtual thread (Java 21) (default platform)
+	// based on ExecutionModel <platform | virtual> in the configuration file
+	public static boolean virtualThreads = false;
 
 	public static void main(String args[]) throws Exception {
 
@@ -36,26 +58,55 @@ class HTTPServer {
 
 		// read config
 		readConfig();
+
+		// keep the caches consistent with the document roots
+		if (cache != null || openFileCache != null)
+			CacheWatcher.start(cache, openFileCache, virtualHosts.values());
 		
-		// create server socket
-		ServerSocket listenSocket = new ServerSocket(serverPort);
+		cgiExecutor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "CGI stdin");
+			t.setDaemon(true);
+			return t;
+		});
+
+		threadSlots = new Semaphore(virtualThreads ? MAX_VIRTUAL_THREAD : MAX_THREAD);
+		ExecutorService virtualThreadExecutor = virtualThreads ? Util.newVirtualThreadPerTaskExecutor() : null;
+
+		// create server socket, with a channel so that the handlers can send files with transferTo
+		ServerSocket listenSocket = ServerSocketChannel.open().bind(new InetSocketAddress(serverPort)).socket();
 
 		System.out.println("server listening at: " + listenSocket);
+		System.out.println("execution model: " + (virtualThreads ? "virtual" : "platform") + " threads");
 
 		while (true) {
 
+			// wait for a free slot, the connections beyond the limit wait in the backlog of the socket
+			threadSlots.acquireUninterruptibly();
+
+			Socket connectionSocket = null;
 			try {
 
 				// take a ready connection from the accepted queue
-				Socket connectionSocket = listenSocket.accept();
+				connectionSocket = listenSocket.accept();
 				Util.DEBUG("\nReceive request from " + connectionSocket);
 
-				// process a request
-				Thread thread = new Thread(new HTTPRequestHandler(connectionSocket));
-
-				thread.start();
-
-			} catch (IOException e) {
+				// process a request (the handler gives the slot back)
+				HTTPRequestHandler handler = new HTTPRequestHandler(connectionSocket);
+				if (virtualThreadExecutor != null)
+					virtualThreadExecutor.execute(handler);
+				else
+					new Thread(handler).start();
+
+			} catch (IOException | RuntimeException e) {
+				// no handler runs for the connection: give its slot back and close it
+				threadSlots.release();
+				if (connectionSocket != null) {
+					try {
+						connectionSocket.close();
+					} catch (IOException ce) {
+						Util.DEBUG("cannot close " + connectionSocket + ": " + ce);
+					}
+				}
 				System.out.println("cannot handle IO for connection socket");
 			}
 		}
@@ -106,8 +157,30 @@ class HTTPServer {
 					serverPort = Integer.parseInt(st.substring(st.indexOf("Listen") + 7).trim());
 				}
 				else if(st.contains("CacheSize") && parsingVH == false){
-					cacheMaxSize = 1024 * Integer.parseInt(st.substring(st.indexOf("CacheSize") + 10).trim());
-					cache = new HashMap<>();
+					cache = new FileCache(1024L * Long.parseLong(st.substring(st.indexOf("CacheSize") + 10).trim()));
+				}
+				else if(st.contains("OpenFileCache") && parsingVH == false){
+					String[] args = st.substring(st.indexOf("OpenFileCache") + 14).trim().split("\\s+");
+					try{
+						if(args.length == 1 && args[0].equals("off"))
+							openFileCache = null;
+						else if(args.length > 2 || Integer.parseInt(args[0]) < 1)
+							throw new IllegalArgumentException();
+						else
+							openFileCache = new OpenFileCache(Integer.parseInt(args[0]),
+									args.length == 2 ? 1000 * Long.parseLong(args[1]) : OPEN_FILE_CACHE_VALID);
+					} catch(IllegalArgumentException e){
+						Util.panic(7, "OpenFileCache should be <max entries> [<valid seconds>] or off!");
+					}
+				}
+				else if(st.contains("ExecutionModel") && parsingVH == false){
+					String model = st.substring(st.indexOf("ExecutionModel") + 15).trim();
+					if(!model.equals("platform") && !model.equals("virtual"))
+						Util.panic(7, "ExecutionModel should be platform or virtual!");
+					virtualThreads = model.equals("virtual");
+				}
+				else if(st.contains("LimitRequestBody") && parsingVH == false){
+					limitRequestBody = Long.parseLong(st.substring(st.indexOf("LimitRequestBody") + 17).trim());
 				}
 				else if(st.contains("VirtualHost") && parsingVH == false){ // note that *:6789 is ignored
 					vh = new VirtualHost();
@@ -131,6 +204,33 @@ class HTTPServer {
 					} else if(st.contains("ServerName")){
 						int idx = st.indexOf("ServerName") + 11;
 						vh.setServerName(st.substring(idx).trim());
+					} else if(st.contains("FastCGIPass")){
+						int idx = st.indexOf("FastCGIPass") + 12;
+						String fastCGIPass = st.substring(idx).trim();
+						try{
+							FastCGIClient.parseAddress(fastCGIPass);
+						} catch(IllegalArgumentException e){
+							Util.panic(6, "cannot parse FastCGIPass " + fastCGIPass + "!");
+						}
+						vh.setFastCGIPass(fastCGIPass);
+					} else if(st.contains("CacheControl")){
+						vh.getCachePolicy().setCacheControl(st.substring(st.indexOf("CacheControl") + 13).trim());
+					} else if(st.contains("ExpiresDefault")){
+						String seconds = st.substring(st.indexOf("ExpiresDefault") + 15).trim();
+						try{
+							vh.getCachePolicy().setExpiresDefault(Long.parseLong(seconds));
+						} catch(IllegalArgumentException e){
+							Util.panic(7, "cannot parse ExpiresDefault " + seconds + "!");
+						}
+					} else if(st.contains("ExpiresByType")){
+						String[] args = st.substring(st.indexOf("ExpiresByType") + 14).trim().split("\\s+");
+						try{
+							if(args.length != 2)
+								throw new IllegalArgumentException();
+							vh.getCachePolicy().setExpiresByType(args[0], Long.parseLong(args[1]));
+						} catch(IllegalArgumentException e){
+							Util.panic(7, "ExpiresByType should be <media type> <seconds>!");
+						}
 					}
 				}
 			}
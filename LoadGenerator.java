@@ -0,0 +1,521 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.*;
+
+/**
+ * A load generator for the three servers, reporting the latency percentiles and the
+ * throughput of a run as JSON
+ *
+ * Two modes:
+ * - closed: every connection sends a request as soon as the previous response has been
+ *   received (like ab -c). The rate is set by the server, so a stalled server also
+ *   stalls the load, and the requests that would have been sent during a stall are never
+ *   measured (coordinated omission): the percentiles of this mode hide the stalls
+ * - open: the requests are sent at a constant rate (-rate), whatever the server does.
+ *   Request i is scheduled at start + i / rate, and its latency is measured from that
+ *   time, not from the time it was actually sent: if every connection is busy (the
+ *   server is slower than the rate), the time a request waits for a connection is part
+ *   of its latency, as it would be for a real client
+ *
+ * The requests go through the URLs (-url, with weights) in a fixed order, so a run can be
+ * repeated with the same mix. The requests of the warm-up are sent but not recorded.
+ */
+public class LoadGenerator {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	// options
+	private static String targetHost = "localhost";
+	private static int targetPort = 6789;
+	private static String vhost = null; // the Host header (the target host by default)
+	private static String mode = "closed";
+	private static int connections = 10;
+	private static double rate = 0; // requests per second, open mode
+	private static long duration = 10; // in sec
+	private static long warmup = 2; // in sec
+	private static boolean keepAlive = false;
+	private static int timeout = 5000; // read timeout in millisec
+	private static String label = "";
+	private static String outputFile = null;
+
+	// the URLs, and the order in which they are requested (every URL repeated by its weight)
+	private static final List<String> urls = new ArrayList<>();
+	private static final List<Integer> weights = new ArrayList<>();
+	private static int[] schedule;
+	private static byte[][] requests;
+
+	private static final AtomicLong sequence = new AtomicLong();
+	private static long startTime; // nanoTime of the start of the warm-up
+	private static long measureTime; // nanoTime of the end of the warm-up
+	private static long endTime; // nanoTime of the end of the run
+
+	public static void main(String args[]) throws Exception {
+		parseArgument(args);
+
+		schedule = buildSchedule();
+		requests = new byte[urls.size()][];
+		for (int i = 0; i < urls.size(); i++)
+			requests[i] = buildRequest(urls.get(i));
+
+		Worker[] workers = new Worker[connections];
+		for (int i = 0; i < connections; i++)
+			workers[i] = new Worker();
+		startTime = System.nanoTime();
+		measureTime = startTime + TimeUnit.SECONDS.toNanos(warmup);
+		endTime = measureTime + TimeUnit.SECONDS.toNanos(duration);
+		for (Worker w : workers)
+			w.start();
+		for (Worker w : workers)
+			w.join();
+
+		String json = report(workers);
+		System.out.println(json);
+		if (outputFile != null) {
+			try (Writer out = new FileWriter(outputFile, true)) {
+				out.write(json + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Parse the arguments
+	 * @param args arguments
+	 */
+	public static void parseArgument(String args[]) {
+		Options options = new Options();
+		options.addOption(new Option("target", true, "host:port of the server (default localhost:6789)"));
+		options.addOption(new Option("url", true, "[weight:]path, may be given several times (default /index.html)"));
+		options.addOption(new Option("vhost", true, "Host header (default the host of -target)"));
+		options.addOption(new Option("mode", true, "closed (default) or open"));
+		options.addOption(new Option("c", true, "number of connections (default 10)"));
+		options.addOption(new Option("rate", true, "requests per second of the open mode"));
+		options.addOption(new Option("d", true, "duration in sec, after the warm-up (default 10)"));
+		options.addOption(new Option("warmup", true, "warm-up in sec (default 2)"));
+		options.addOption(new Option("k", false, "keep the connections alive"));
+		options.addOption(new Option("timeout", true, "read timeout in millisec (default 5000)"));
+		options.addOption(new Option("label", true, "label of the run in the JSON (e.g., the server)"));
+		options.addOption(new Option("o", true, "also append the JSON to this file"));
+
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+		try {
+			CommandLine cmd = parser.parse(options, args);
+			if (cmd.hasOption("target")) {
+				String target = cmd.getOptionValue("target");
+				int colon = target.lastIndexOf(':');
+				if (colon != -1) {
+					targetHost = target.substring(0, colon);
+					targetPort = Integer.parseInt(target.substring(colon + 1));
+				} else {
+					targetHost = target;
+				}
+			}
+			vhost = cmd.getOptionValue("vhost", targetHost);
+			if (cmd.hasOption("url")) {
+				for (String url : cmd.getOptionValues("url")) {
+					int weight = 1;
+					int colon = url.indexOf(':');
+					if (colon > 0 && !url.startsWith("/")) {
+						weight = Integer.parseInt(url.substring(0, colon));
+						url = url.substring(colon + 1);
+					}
+					if (weight < 1 || !url.startsWith("/"))
+						Util.panic(1, "Invalid url " + url + ": [weight:]path, with weight >= 1");
+					urls.add(url);
+					weights.add(weight);
+				}
+			} else {
+				urls.add("/index.html");
+				weights.add(1);
+			}
+			mode = cmd.getOptionValue("mode", mode);
+			connections = Integer.parseInt(cmd.getOptionValue("c", "" + connections));
+			duration = Long.parseLong(cmd.getOptionValue("d", "" + duration));
+			warmup = Long.parseLong(cmd.getOptionValue("warmup", "" + warmup));
+			keepAlive = cmd.hasOption("k");
+			timeout = Integer.parseInt(cmd.getOptionValue("timeout", "" + timeout));
+			label = cmd.getOptionValue("label", label);
+			outputFile = cmd.getOptionValue("o");
+			if (mode.equals("open")) {
+				if (!cmd.hasOption("rate"))
+					Util.panic(1, "-mode open needs -rate");
+				rate = Double.parseDouble(cmd.getOptionValue("rate"));
+				if (rate <= 0)
+					Util.panic(1, "-rate must be > 0");
+			} else if (!mode.equals("closed")) {
+				Util.panic(1, "Invalid mode " + mode + ": closed or open");
+			}
+			if (connections < 1 || duration < 1 || warmup < 0)
+				Util.panic(1, "-c and -d must be >= 1, and -warmup >= 0");
+		} catch (ParseException | NumberFormatException e) {
+			System.out.println(e.getMessage());
+			formatter.printHelp("java -jar LoadGenerator.jar", options);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return the index of the URL of every request, repeated: every URL appears as many
+	 * times as its weight, spread over the schedule (smooth weighted round-robin)
+	 */
+	private static int[] buildSchedule() {
+		int total = 0;
+		for (int w : weights)
+			total += w;
+		int[] s = new int[total];
+		int[] current = new int[weights.size()];
+		for (int i = 0; i < total; i++) {
+			int best = 0;
+			for (int u = 0; u < weights.size(); u++) {
+				current[u] += weights.get(u);
+				if (current[u] > current[best])
+					best = u;
+			}
+			current[best] -= total;
+			s[i] = best;
+		}
+		return s;
+	}
+
+	private static byte[] buildRequest(String url) {
+		return ("GET " + url + " HTTP/1.1\r\n"
+				+ "Host: " + vhost + "\r\n"
+				+ "User-Agent: LoadGenerator\r\n"
+				+ "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+				+ "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * A connection to the server, sending requests until the end of the run
+	 */
+	static class Worker extends Thread {
+
+		// the latencies in nanosec of the recorded requests of every URL, and their status codes
+		final Samples[] samples = new Samples[urls.size()];
+		final TreeMap<Integer, Long> statusCodes = new TreeMap<>();
+		long errors = 0;
+		long reconnects = 0; // the server closed a persistent connection
+		long bytesReceived = 0;
+		long lastResponse = 0; // nanoTime of the end of the last response
+
+		private Socket socket;
+		private boolean responseStarted; // whether a byte of the response has been received
+		private InputStream in;
+		private OutputStream out;
+		private final byte[] line = new byte[BUFFER_SIZE];
+		private final byte[] skip = new byte[BUFFER_SIZE];
+
+		Worker() {
+			for (int i = 0; i < samples.length; i++)
+				samples[i] = new Samples();
+		}
+
+		@Override
+		public void run() {
+			long interval = mode.equals("open") ? (long) (1e9 / rate) : 0;
+			while (true) {
+				long i = sequence.getAndIncrement();
+				long intended;
+				if (interval > 0) {
+					intended = startTime + i * interval;
+					if (intended >= endTime)
+						break;
+					// wait for the scheduled time (never sleep past it)
+					long now;
+					while ((now = System.nanoTime()) < intended)
+						LockSupport.parkNanos(intended - now);
+				} else {
+					intended = System.nanoTime();
+					if (intended >= endTime)
+						break;
+				}
+				int url = schedule[(int) (i % schedule.length)];
+				int status = send(requests[url]);
+				lastResponse = System.nanoTime();
+				long latency = lastResponse - intended;
+				if (intended < measureTime)
+					continue;
+				if (status == -1) {
+					errors++;
+				} else {
+					samples[url].add(latency);
+					statusCodes.merge(status, 1L, Long::sum);
+				}
+			}
+			close();
+		}
+
+		/**
+		 * Send a request and read the whole response, on the persistent connection if any
+		 * @return the status code, or -1 on error
+		 */
+		private int send(byte[] request) {
+			boolean reused = socket != null;
+			responseStarted = false;
+			try {
+				if (socket == null)
+					connect();
+				out.write(request);
+				out.flush();
+				return readResponse();
+			} catch (IOException e) {
+				close();
+				if (!reused || responseStarted)
+					return -1;
+				// the server has closed the persistent connection before the request (e.g., its
+				// keep-alive timeout or MaxKeepAliveRequests), which is not an error
+				reconnects++;
+				return send(request);
+			}
+		}
+
+		private void connect() throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeout);
+			socket.connect(new InetSocketAddress(targetHost, targetPort), timeout);
+			in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+			out = socket.getOutputStream();
+		}
+
+		private void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					Util.DEBUG("cannot close " + socket + ": " + e);
+				}
+				socket = null;
+			}
+		}
+
+		/**
+		 * Read the status line, the headers and the body (Content-Length, chunked, or up
+		 * to the close of the connection)
+		 * @return the status code
+		 * @throws EOFException if the connection is closed before the status line
+		 * @throws IOException
+		 */
+		private int readResponse() throws IOException {
+			String statusLine = readLine();
+			if (statusLine == null)
+				throw new EOFException("closed before the response");
+			responseStarted = true;
+			String[] parts = statusLine.split(" ");
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+				throw new IOException("bad status line: " + statusLine);
+			int status = Integer.parseInt(parts[1]);
+			// the connection is only reused if the server says so (the blocking servers close
+			// every connection after the response, without a Connection header)
+			boolean persistent = false;
+			long contentLength = -1;
+			boolean chunked = false;
+			String header;
+			while ((header = readLine()) != null && !header.isEmpty()) {
+				int colon = header.indexOf(':');
+				if (colon == -1)
+					continue;
+				String name = header.substring(0, colon).trim();
+				String value = header.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+					contentLength = Long.parseLong(value);
+				else if (name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = value.equalsIgnoreCase("chunked");
+				else if (name.equalsIgnoreCase("Connection"))
+					persistent = keepAlive && value.equalsIgnoreCase("keep-alive");
+			}
+			if (header == null)
+				throw new IOException("closed in the headers");
+
+			if (status == 304 || status == 204 || status / 100 == 1) {
+				// no body
+			} else if (chunked) {
+				long size;
+				do {
+					String sizeLine = readLine();
+					if (sizeLine == null)
+						throw new IOException("closed in a chunk");
+					int semicolon = sizeLine.indexOf(';');
+					size = Long.parseLong((semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+					skipBytes(size);
+					readLine(); // the \r\n after the chunk (or the end of the empty trailer)
+				} while (size > 0);
+			} else if (contentLength >= 0) {
+				skipBytes(contentLength);
+			} else {
+				// the body ends with the connection
+				int n;
+				while ((n = in.read(skip)) != -1)
+					bytesReceived += n;
+				persistent = false;
+			}
+			if (!persistent)
+				close();
+			return status;
+		}
+
+		/**
+		 * @return the next line without \r\n, or null at EOF
+		 */
+		private String readLine() throws IOException {
+			int n = 0;
+			int b;
+			while ((b = in.read()) != -1) {
+				bytesReceived++;
+				if (b == '\n')
+					break;
+				if (n < line.length)
+					line[n++] = (byte) b;
+			}
+			if (b == -1 && n == 0)
+				return null;
+			if (n > 0 && line[n - 1] == '\r')
+				n--;
+			return new String(line, 0, n, StandardCharsets.ISO_8859_1);
+		}
+
+		private void skipBytes(long n) throws IOException {
+			while (n > 0) {
+				int read = in.read(skip, 0, (int) Math.min(skip.length, n));
+				if (read == -1)
+					throw new IOException("closed in the body");
+				n -= read;
+				bytesReceived += read;
+			}
+		}
+	}
+
+	/**
+	 * A growable array of latencies
+	 */
+	static class Samples {
+		long[] values = new long[1024];
+		int size = 0;
+
+		void add(long v) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = v;
+		}
+
+		void addAll(Samples s) {
+			for (int i = 0; i < s.size; i++)
+				add(s.values[i]);
+		}
+
+		/**
+		 * @return the latencies, sorted
+		 */
+		long[] sorted() {
+			long[] v = Arrays.copyOf(values, size);
+			Arrays.sort(v);
+			return v;
+		}
+	}
+
+	/**
+	 * @return the results of the run as JSON, with the latencies in millisec
+	 */
+	private static String report(Worker[] workers) {
+		Samples all = new Samples();
+		Samples[] byUrl = new Samples[urls.size()];
+		TreeMap<Integer, Long> statusCodes = new TreeMap<>();
+		long errors = 0, reconnects = 0, bytes = 0;
+		long lastResponse = endTime;
+		for (int u = 0; u < urls.size(); u++)
+			byUrl[u] = new Samples();
+		for (Worker w : workers) {
+			for (int u = 0; u < urls.size(); u++) {
+				byUrl[u].addAll(w.samples[u]);
+				all.addAll(w.samples[u]);
+			}
+			for (Map.Entry<Integer, Long> e : w.statusCodes.entrySet())
+				statusCodes.merge(e.getKey(), e.getValue(), Long::sum);
+			errors += w.errors;
+			reconnects += w.reconnects;
+			bytes += w.bytesReceived; // including the warm-up
+			lastResponse = Math.max(lastResponse, w.lastResponse);
+		}
+		// the requests scheduled before the end of the run are all sent, so the run lasts longer
+		// than the duration when the server cannot keep up with the rate of the open mode
+		double elapsed = (lastResponse - measureTime) / 1e9;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"label\":" + quote(label));
+		sb.append(",\"target\":" + quote(targetHost + ":" + targetPort));
+		sb.append(",\"vhost\":" + quote(vhost));
+		sb.append(",\"mode\":" + quote(mode));
+		if (mode.equals("open"))
+			sb.append(",\"rate\":" + rate);
+		sb.append(",\"connections\":" + connections);
+		sb.append(",\"keep_alive\":" + keepAlive);
+		sb.append(",\"warmup_s\":" + warmup);
+		sb.append(",\"duration_s\":" + duration);
+		sb.append(",\"requests\":" + all.size);
+		sb.append(",\"errors\":" + errors);
+		sb.append(",\"reconnects\":" + reconnects);
+		sb.append(",\"elapsed_s\":" + round(elapsed));
+		sb.append(",\"throughput_rps\":" + round(all.size / elapsed));
+		sb.append(",\"transfer_kbps\":" + round(bytes / 1024.0 / (elapsed + warmup)));
+		sb.append(",\"status\":{");
+		boolean first = true;
+		for (Map.Entry<Integer, Long> e : statusCodes.entrySet()) {
+			sb.append((first ? "" : ",") + quote("" + e.getKey()) + ":" + e.getValue());
+			first = false;
+		}
+		sb.append("}");
+		sb.append(",\"latency_ms\":");
+		latency(sb, all.sorted());
+		sb.append(",\"urls\":[");
+		for (int u = 0; u < urls.size(); u++) {
+			sb.append((u == 0 ? "" : ",") + "{\"url\":" + quote(urls.get(u)) + ",\"weight\":" + weights.get(u)
+					+ ",\"requests\":" + byUrl[u].size + ",\"latency_ms\":");
+			latency(sb, byUrl[u].sorted());
+			sb.append("}");
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private static void latency(StringBuilder sb, long[] sorted) {
+		double sum = 0;
+		for (long v : sorted)
+			sum += v;
+		sb.append("{\"min\":" + ms(sorted.length == 0 ? 0 : sorted[0]));
+		sb.append(",\"mean\":" + round(sorted.length == 0 ? 0 : sum / sorted.length / 1e6));
+		sb.append(",\"p50\":" + ms(percentile(sorted, 50)));
+		sb.append(",\"p90\":" + ms(percentile(sorted, 90)));
+		sb.append(",\"p99\":" + ms(percentile(sorted, 99)));
+		sb.append(",\"p99.9\":" + ms(percentile(sorted, 99.9)));
+		sb.append(",\"max\":" + ms(sorted.length == 0 ? 0 : sorted[sorted.length - 1]) + "}");
+	}
+
+	/**
+	 * @return the nearest-rank percentile p of sorted, or 0 if it is empty
+	 */
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	private static double ms(long nanos) {
+		return round(nanos / 1e6);
+	}
+
+	private static double round(double v) {
+		return Math.round(v * 1000) / 1000.0;
+	}
+
+	private static String quote(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,196 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the server, exposed by GET /metrics in the Prometheus text format,
+ * shared by all of the servers (one server per JVM, so the metrics are static)
+ * Every counter is a LongAdder: under contention, every thread adds to a cell of its
+ * own instead of a single shared word, so recording a request takes no lock and the
+ * threads (or event loops) do not contend for a cache line. The cells are only summed
+ * when the metrics are scraped.
+ */
+public class Metrics {
+
+	public static final String PREFIX = "rw_http_";
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+	// the requests by virtual host, and then by status code (100 to 599)
+	private static final ConcurrentHashMap<String, LongAdder[]> requests = new ConcurrentHashMap<>();
+
+	private static final LongAdder bytesSent = new LongAdder();
+
+	private static final LongAdder activeConnections = new LongAdder();
+
+	// the time from the first byte of a request to the end of its response
+	private static final Histogram latency = new Histogram();
+
+	/**
+	 * A connection has been accepted (or handed over to a handler)
+	 */
+	public static void connectionOpened() {
+		activeConnections.increment();
+	}
+
+	/**
+	 * A connection has been closed
+	 */
+	public static void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	/**
+	 * Record a request whose response has been sent
+	 * @param vhost the server name of the virtual host, or null if the request has none (e.g., 400)
+	 * @param status the status code of the response
+	 * @param bytes number of bytes sent (headers and body)
+	 * @param nanos time from the first byte of the request to the end of the response
+	 */
+	public static void request(String vhost, int status, long bytes, long nanos) {
+		if (vhost == null)
+			vhost = "";
+		LongAdder[] byStatus = requests.get(vhost);
+		if (byStatus == null)
+			byStatus = requests.computeIfAbsent(vhost, k -> newCounters(600));
+		if (status >= 100 && status < byStatus.length)
+			byStatus[status].increment();
+		bytesSent.add(bytes);
+		latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	private static LongAdder[] newCounters(int n) {
+		LongAdder[] counters = new LongAdder[n];
+		for (int i = 0; i < n; i++)
+			counters[i] = new LongAdder();
+		return counters;
+	}
+
+	/**
+	 * @param cache the cache of the server, or null if it has none
+	 * @return the metrics in the Prometheus text format (followed by the metrics specific to the server if any)
+	 */
+	public static StringBuilder scrape(FileCache cache) {
+		StringBuilder sb = new StringBuilder(8192);
+
+		header(sb, "requests_total", "counter", "Requests served, by virtual host and status code");
+		for (Map.Entry<String, LongAdder[]> e : requests.entrySet()) {
+			LongAdder[] byStatus = e.getValue();
+			for (int status = 100; status < byStatus.length; status++) {
+				long n = byStatus[status].sum();
+				if (n > 0)
+					sb.append(PREFIX + "requests_total{vhost=\"" + escape(e.getKey()) + "\",code=\"" + status + "\"} " + n + "\n");
+			}
+		}
+
+		header(sb, "response_bytes_total", "counter", "Bytes sent in responses (headers and bodies)");
+		sb.append(PREFIX + "response_bytes_total " + bytesSent.sum() + "\n");
+
+		header(sb, "active_connections", "gauge", "Connections currently open");
+		sb.append(PREFIX + "active_connections " + activeConnections.sum() + "\n");
+
+		if (cache != null) {
+			long hits = cache.getHits(), misses = cache.getMisses();
+			header(sb, "cache_hits_total", "counter", "Lookups of the file cache that found the file");
+			sb.append(PREFIX + "cache_hits_total " + hits + "\n");
+			header(sb, "cache_misses_total", "counter", "Lookups of the file cache that did not find the file");
+			sb.append(PREFIX + "cache_misses_total " + misses + "\n");
+			header(sb, "cache_hit_ratio", "gauge", "Hits over lookups of the file cache since the start");
+			sb.append(PREFIX + "cache_hit_ratio " + (hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)) + "\n");
+		}
+
+		latency.write(sb, "request_duration_seconds", "Time from the first byte of a request to the end of its response");
+		return sb;
+	}
+
+	/**
+	 * Write the HELP and TYPE lines of a metric
+	 */
+	public static void header(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP " + PREFIX + name + " " + help + "\n");
+		sb.append("# TYPE " + PREFIX + name + " " + type + "\n");
+	}
+
+	/**
+	 * Write a histogram
+	 * @param le the upper bound of every bucket in seconds, but the last one (+Inf)
+	 * @param counts the count of every bucket (not cumulative), including the last one
+	 * @param sum the sum of the values in seconds
+	 */
+	public static void histogram(StringBuilder sb, String name, String help, double[] le, long[] counts, double sum) {
+		header(sb, name, "histogram", help);
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			sb.append(PREFIX + name + "_bucket{le=\"" + (i < le.length ? Double.toString(le[i]) : "+Inf") + "\"} " + cumulative + "\n");
+		}
+		sb.append(PREFIX + name + "_sum " + sum + "\n");
+		sb.append(PREFIX + name + "_count " + cumulative + "\n");
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * A log-linear histogram of microseconds, like HdrHistogram: every power of 2 is split
+	 * into SUB_BUCKETS linear buckets, so the relative error of a bucket is at most
+	 * 1 / SUB_BUCKETS whatever the magnitude, with a fixed number of buckets. A value is
+	 * recorded with a few bit operations and a LongAdder increment.
+	 */
+	public static class Histogram {
+
+		public static final int SUB_BUCKET_BITS = 2;
+		public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		// the values up to 2^MAX_MAGNITUDE microsec (about 67 sec) have a bucket, the rest go to +Inf
+		public static final int MAX_MAGNITUDE = 26;
+		public static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+		private final LongAdder[] counts = newCounters(BUCKETS + 1); // the last one is +Inf
+		private final LongAdder sum = new LongAdder();
+
+		/**
+		 * @param value in microsec
+		 */
+		public void record(long value) {
+			counts[index(value)].increment();
+			sum.add(value);
+		}
+
+		/**
+		 * @return the bucket of value: the values below SUB_BUCKETS have a bucket each, and
+		 * the values of [2^m, 2^(m+1)) are split into SUB_BUCKETS buckets of 2^(m-SUB_BUCKET_BITS)
+		 */
+		public static int index(long value) {
+			if (value < SUB_BUCKETS)
+				return (int) Math.max(value, 0);
+			int magnitude = 63 - Long.numberOfLeadingZeros(value);
+			if (magnitude >= MAX_MAGNITUDE)
+				return BUCKETS;
+			int shift = magnitude - SUB_BUCKET_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+		}
+
+		/**
+		 * @return the largest value of bucket i (i < BUCKETS)
+		 */
+		public static long upperBound(int i) {
+			if (i < SUB_BUCKETS)
+				return i;
+			int shift = i / SUB_BUCKETS - 1;
+			return ((long) (i % SUB_BUCKETS + SUB_BUCKETS + 1) << shift) - 1;
+		}
+
+		public void write(StringBuilder sb, String name, String help) {
+			double[] le = new double[BUCKETS];
+			long[] n = new long[BUCKETS + 1];
+			for (int i = 0; i <= BUCKETS; i++) {
+				if (i < BUCKETS)
+					le[i] = upperBound(i) / 1e6;
+				n[i] = counts[i].sum();
+			}
+			histogram(sb, name, help, le, n, sum.sum() / 1e6);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A cache of the resolution of the static requests shared by all of the servers, like the
+ * open_file_cache of nginx
+ * Resolving a request takes a dozen system calls before any byte is sent: whether the path is a
+ * directory (and which index file to use), its canonical path, whether it is in the document
+ * root, whether it is a file, whether it is executable, its size and its mtime. The key is the
+ * path of the request under the document root of its virtual host and whether the client is a
+ * phone (which picks index_m.html), and the value is an immutable entry holding all of that,
+ * with the Content-Type, Last-Modified and ETag headers encoded once.
+ *
+ * An entry is used for at most the valid time after it has been resolved, so a change of the
+ * file system is seen by the requests after that time (or as soon as CacheWatcher reports it) (the FileCache entry of a file, if any,
+ * still provides the content, its mtime and its size). Requests that get 403 or 404 are cached
+ * as well. At most max entries are kept: when the cache is full, the expired entries are removed,
+ * and a new entry is not cached if none has expired.
+ */
+public class OpenFileCache {
+
+	// kinds of the resolved files
+	public static final int FORBIDDEN = 0; // out of the document root
+	public static final int NOT_FOUND = 1;
+	public static final int CGI = 2; // an executable file
+	public static final int STATIC = 3;
+
+	/**
+	 * A resolved request. It must never be modified once created
+	 */
+	public static final class Entry {
+		private final File file;
+		private final String canonicalPath;
+		private final int kind;
+		private final long length; // of a static file
+		private final long lastModified; // of a static file
+		private final String contentType;
+		private final byte[] contentTypeHeader;
+		private final byte[] lastModifiedHeader;
+		private final String etag;
+		private final byte[] etagHeader;
+		final long expires; // in millisec since the epoch
+
+		Entry(File file, String canonicalPath, int kind, long length, long lastModified, long expires) {
+			this.file = file;
+			this.canonicalPath = canonicalPath;
+			this.kind = kind;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.expires = expires;
+			if (kind == STATIC) {
+				contentType = contentType(canonicalPath);
+				contentTypeHeader = ("Content-Type: " + contentType + "\r\n").getBytes(StandardCharsets.US_ASCII);
+				lastModifiedHeader = HTTPDate.lastModifiedHeader(lastModified);
+				etag = ETag.of(lastModified, length);
+				etagHeader = ETag.header(etag);
+			} else {
+				contentType = null;
+				contentTypeHeader = null;
+				lastModifiedHeader = null;
+				etag = null;
+				etagHeader = null;
+			}
+		}
+
+		/**
+		 * @return the file to serve (the index file of a directory)
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		public String getCanonicalPath() {
+			return canonicalPath;
+		}
+
+		/**
+		 * @return FORBIDDEN, NOT_FOUND, CGI or STATIC
+		 */
+		public int getKind() {
+			return kind;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @return the Content-Type header line of the file (shared bytes that must not be modified)
+		 */
+		public byte[] getContentTypeHeader() {
+			return contentTypeHeader;
+		}
+
+		/**
+		 * @return the Last-Modified header line of the file (shared bytes that must not be modified)
+		 */
+		public byte[] getLastModifiedHeader() {
+			return lastModifiedHeader;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * @return the ETag header line of the file (shared bytes that must not be modified)
+		 */
+		public byte[] getETagHeader() {
+			return etagHeader;
+		}
+	}
+
+	/**
+	 * The key of an entry
+	 */
+	private static final class Key {
+		final String filePath;
+		final boolean phone;
+
+		Key(String filePath, boolean phone) {
+			this.filePath = filePath;
+			this.phone = phone;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return phone == k.phone && filePath.equals(k.filePath);
+		}
+
+		public int hashCode() {
+			return filePath.hashCode() * 2 + (phone ? 1 : 0);
+		}
+	}
+
+	private final int max; // number of entries
+	private final long valid; // in millisec
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+	// statistics
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param max number of entries
+	 * @param valid time of an entry, in millisec
+	 */
+	public OpenFileCache(int max, long valid) {
+		this.max = max;
+		this.valid = valid;
+	}
+
+	/**
+	 * Resolve a request, from the cache if it has been resolved in the valid time
+	 * @param cache the cache, or null to always resolve from the file system
+	 * @param filePath the document root of the virtual host + the path of the request
+	 * @param docRoot the document root of the virtual host
+	 * @param phone whether the client is a phone (index_m.html is preferred for a directory)
+	 */
+	public static Entry resolve(OpenFileCache cache, String filePath, String docRoot, boolean phone) throws IOException {
+		if (cache == null)
+			return resolve(filePath, docRoot, phone, 0);
+		return cache.get(filePath, docRoot, phone);
+	}
+
+	private Entry get(String filePath, String docRoot, boolean phone) throws IOException {
+		Key key = new Key(filePath, phone);
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(key);
+		if (entry != null && now < entry.expires) {
+			hits.increment();
+			return entry;
+		}
+		misses.increment();
+		entry = resolve(filePath, docRoot, phone, now + valid);
+		if (entries.size() >= max && !entries.containsKey(key))
+			removeExpired(now);
+		if (entries.size() < max || entries.containsKey(key))
+			entries.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Remove every entry, e.g., when the file system has changed (see CacheWatcher)
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Remove the entries that have expired
+	 */
+	private synchronized void removeExpired(long now) {
+		entries.values().removeIf(e -> now >= e.expires);
+	}
+
+	/**
+	 * Resolve a request from the file system
+	 * @param expires the time until which the entry is valid
+	 */
+	private static Entry resolve(String filePath, String docRoot, boolean phone, long expires) throws IOException {
+		File file = new File(filePath);
+
+		// use index.html or index_m.html if file is a directory
+		if (file.isDirectory()) {
+			String fileDir = file.getCanonicalPath();
+			file = new File(fileDir + "/index.html");
+			if (phone) {
+				File mobile = new File(fileDir + "/index_m.html");
+				if (mobile.exists())
+					file = mobile;
+			}
+		}
+
+		// the file must be contained in the root directory
+		String canonicalPath = file.getCanonicalPath();
+		if (!canonicalPath.startsWith(new File(docRoot).getCanonicalPath()))
+			return new Entry(file, canonicalPath, FORBIDDEN, 0, 0, expires);
+
+		// test whether the file exists
+		if (!file.isFile())
+			return new Entry(file, canonicalPath, NOT_FOUND, 0, 0, expires);
+
+		if (file.canExecute())
+			return new Entry(file, canonicalPath, CGI, 0, 0, expires);
+
+		// the mtime is taken before the content is read, so a concurrent change is detected by FileCache
+		long lastModified = file.lastModified();
+		return new Entry(file, canonicalPath, STATIC, file.length(), lastModified, expires);
+	}
+
+	/**
+	 * @return the media type of a file
+	 */
+	private static String contentType(String path) {
+		if (path.endsWith(".jpg"))
+			return "image/jpeg";
+		else if (path.endsWith(".gif"))
+			return "image/gif";
+		else if (path.endsWith(".html") || path.endsWith(".htm"))
+			return "text/html";
+		else // including .txt file
+			return "text/plain";
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public String toString() {
+		return "<openFileCache entries:" + entries.size() + ", max:" + max + ", valid:" + valid + "ms"
+				+ ", hits:" + hits.sum() + ", misses:" + misses.sum() + ">";
+	}
+}
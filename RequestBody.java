@@ -0,0 +1,239 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The body of a request on its way from the client to its consumer (the stdin of a
+ * CGI script or of a FastCGI request), shared by all of the servers
+ * The connection writes the bytes as they arrive and never waits for the consumer:
+ * up to MEMORY_LIMIT bytes are kept in memory, and once the consumer is that far
+ * behind, the following bytes are spilled to a temp file (until the consumer has
+ * caught up with the file). So a consumer slower than the client neither stalls the
+ * connection nor keeps a large body in memory. The consumer reads the bytes in order
+ * with transferTo(), which waits for the bytes that have not arrived yet.
+ * Thread-safe: one thread writes and another one consumes.
+ */
+public class RequestBody {
+
+	// maximum number of bytes kept in memory
+	public static final int MEMORY_LIMIT = 64 * 1024;
+
+	private static final int BLOCK_SIZE = 8192;
+
+	private final long length; // the Content-Length
+	private long received = 0; // bytes written by the connection
+
+	// the bytes in memory, which come before the bytes in the file
+	private final ArrayDeque<byte[]> memory = new ArrayDeque<>();
+	private int memoryBytes = 0;
+	private int offset = 0; // in the first array of memory
+
+	// the spilled bytes, from readPosition to writePosition
+	private Path spillPath;
+	private FileChannel spill;
+	private long readPosition = 0, writePosition = 0;
+	private long spilled = 0; // total bytes spilled, for the statistics
+
+	private boolean discarding = false; // the consumer is gone, so the bytes are dropped
+	private IOException error; // the client has gone away before the end of the body
+
+	/**
+	 * @param length the Content-Length
+	 */
+	public RequestBody(long length) {
+		this.length = length;
+	}
+
+	/**
+	 * whether every byte of the body has been received
+	 */
+	public synchronized boolean isComplete() {
+		return received == length;
+	}
+
+	/**
+	 * @return number of bytes that have not been received yet
+	 */
+	public synchronized long remaining() {
+		return length - received;
+	}
+
+	/**
+	 * Write the bytes of src that belong to the body (the bytes after them are left in src)
+	 * Never blocks on the consumer
+	 * @param src in read mode
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		int n = (int) Math.min(src.remaining(), remaining());
+		if (src.hasArray()) {
+			write(src.array(), src.arrayOffset() + src.position(), n);
+			src.position(src.position() + n);
+		} else {
+			byte[] b = new byte[n];
+			src.get(b);
+			write(b, 0, n);
+		}
+	}
+
+	/**
+	 * Write bytes of the body (they are copied, so b can be reused)
+	 * Never blocks on the consumer
+	 */
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		len = (int) Math.min(len, length - received);
+		received += len;
+		if (discarding || len == 0) {
+			notifyAll();
+			return;
+		}
+		// spill if the consumer is MEMORY_LIMIT bytes behind, or has not caught up with the file yet
+		if (spill != null && readPosition < writePosition || memoryBytes + len > MEMORY_LIMIT) {
+			if (spill == null) {
+				spillPath = Files.createTempFile("body", ".tmp");
+				spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.DELETE_ON_CLOSE);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining())
+				writePosition += spill.write(buffer, writePosition);
+			spilled += len;
+		} else {
+			memory.add(Arrays.copyOfRange(b, off, off + len));
+			memoryBytes += len;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Read the rest of the body from in (the socket of a blocking server)
+	 * @throws IOException if the client has gone away before the end of the body
+	 */
+	public void receive(InputStream in) throws IOException {
+		byte[] b = new byte[BLOCK_SIZE];
+		while (!isComplete()) {
+			int n = in.read(b, 0, (int) Math.min(b.length, remaining()));
+			if (n == -1) {
+				EOFException e = new EOFException("the client closed the connection before the end of the body");
+				fail(e);
+				throw e;
+			}
+			write(b, 0, n);
+		}
+	}
+
+	/**
+	 * The client has gone away before the end of the body, the consumer gets e
+	 */
+	public synchronized void fail(IOException e) {
+		error = e;
+		notifyAll();
+	}
+
+	/**
+	 * Copy the whole body to out (as it arrives) and close out
+	 * If out fails (e.g., the script exits without reading its input), the rest of the body is dropped
+	 * @throws IOException if the client has gone away before the end of the body
+	 */
+	public void transferTo(OutputStream out) throws IOException {
+		byte[] b = new byte[BLOCK_SIZE];
+		try {
+			int n;
+			while ((n = read(b)) != -1) {
+				try {
+					out.write(b, 0, n);
+				} catch (IOException e) {
+					Util.DEBUG("request body: the consumer is gone: " + e);
+					discard();
+					return;
+				}
+			}
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				Util.DEBUG("request body: the consumer is gone: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Read the next bytes of the body into b, waiting for them if they have not arrived yet
+	 * @return number of bytes, or -1 at the end of the body
+	 */
+	private synchronized int read(byte[] b) throws IOException {
+		while (memoryBytes == 0 && readPosition == writePosition && received < length && error == null && !discarding) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("waiting for the request body");
+			}
+		}
+		if (memoryBytes > 0) {
+			byte[] first = memory.peek();
+			int n = Math.min(b.length, first.length - offset);
+			System.arraycopy(first, offset, b, 0, n);
+			offset += n;
+			memoryBytes -= n;
+			if (offset == first.length) {
+				memory.poll();
+				offset = 0;
+			}
+			return n;
+		}
+		if (readPosition < writePosition) {
+			ByteBuffer buffer = ByteBuffer.wrap(b, 0, (int) Math.min(b.length, writePosition - readPosition));
+			int n = spill.read(buffer, readPosition);
+			readPosition += n;
+			if (readPosition == writePosition) {
+				// the consumer has caught up, the file is reused from its start
+				readPosition = writePosition = 0;
+			}
+			return n;
+		}
+		if (error != null)
+			throw error;
+		// the end of the body
+		closeSpill();
+		return -1;
+	}
+
+	/**
+	 * Drop the bytes that have not been consumed and the bytes that arrive from now on
+	 * (e.g., the consumer is gone), and remove the temp file
+	 */
+	public synchronized void discard() {
+		discarding = true;
+		memory.clear();
+		memoryBytes = 0;
+		readPosition = writePosition;
+		closeSpill();
+		notifyAll();
+	}
+
+	/**
+	 * Close (and so remove) the temp file if any
+	 */
+	private void closeSpill() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return number of bytes spilled to the temp file
+	 */
+	public synchronized long getSpilled() {
+		return spilled;
+	}
+
+	public synchronized String toString() {
+		return "RequestBody: " + received + "/" + length + " bytes received, " + memoryBytes + " in memory, "
+				+ (writePosition - readPosition) + " in " + (spillPath != null ? spillPath : "no temp file");
+	}
+}
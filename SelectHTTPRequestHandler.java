@@ -4,19 +4,21 @@
 import java.io.*;
 import java.net.*;
 import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.lang.management.ManagementFactory;
 import com.sun.management.OperatingSystemMXBean;
 
 class SelectHTTPRequestHandler {
 	
 	// BUFFER_SIZE should at least fit the response status line & headers
-	private static final int BUFFER_SIZE = 4096;
+	public static final int BUFFER_SIZE = 4096;
 
+	/* inBuffer and outBuffer are borrowed from the buffer pool of the event loop only while
+	 * the connection is reading or writing, and are null while the connection is idle
+	 */
 	ByteBuffer inBuffer;
 	/* The status line and headers will be put into outBuffer directly without bound checking
 	 * so BUFFER_SIZE need to be large enough.
@@ -28,12 +30,26 @@ class SelectHTTPRequestHandler {
 	// An array for the file
 	byte[] fileInBytes;
 	int fileInBytesIdx = 0; // start from where in fileInBytes to put into outBuffer
+
+	// A file that is not cached is sent with FileChannel.transferTo (zero copy) instead
+	FileChannel fileChannel;
+	long filePosition = 0; // start from where in fileChannel to transfer to the client
+	long fileLength = 0;
+
+	// The ranges of a Range request (null for the whole file), and the range being sent:
+	// fileInBytesIdx (or filePosition) goes up to fileLength, the end of the range
+	ByteRanges ranges;
+	int rangeIdx = 0;
 	
-	StringBuilder request; // string buffer for the header of the request
-	StringBuilder data; // string buffer for the data of the request
+	HTTPRequestParser parser; // parser for the request line & headers of the request
+	/* The body of the request (if it has a Content-Length), which is read alongside the response:
+	 * the response is generated as soon as the headers are parsed (so a CGI script starts while
+	 * its stdin is still arriving), and OP_READ stays on until the whole body has been received
+	 */
+	RequestBody body;
 
 	public enum State {
-		READING_HEADER, READING_DATA, GENERATING_RESPONSE, RESPONSE_READY, LAST_RESPONSE_READY, RESPONSE_SENT
+		READING_HEADER, GENERATING_RESPONSE, RUNNING_CGI, RESPONSE_READY, LAST_RESPONSE_READY, DISCARDING_BODY, RESPONSE_SENT
 	}
 	public State state;
 
@@ -54,103 +70,202 @@ class SelectHTTPRequestHandler {
 	String query_string; // the string after ? if any
 
 	boolean usingHeartbeatingMonitor = false; // whether or not GET /load
+	boolean usingMetrics = false; // whether or not GET /metrics
+
+	// for the metrics of the current request
+	int status = 0; // the status code of the response, 0 until its status line is written
+	long requestStart; // System.nanoTime() of the first byte of the request
+	long bytesSent = 0; // bytes of the response sent so far
+
+	long ifModifiedSince = -1; // in millisec, if the header is present in the request
+
+	long lastModified = -1; // of the file, in millisec
+	String etag; // of the file (see ETag)
+
+	OpenFileCache.Entry openFile; // the resolved file (see OpenFileCache)
+	FileCache.Entry cacheEntry; // the cached file if any
+
+	long contentLength = -1; // for POST request
+
+	boolean keepAlive = true; // whether the connection is kept open after the current response
+	int numRequests = 0; // number of requests served on this connection
 
-	Date ifModifiedSince; // if the header is present in the request
+	// the timeout of the connection, rescheduled whenever the connection changes phase:
+	// reading a request (HEADER_TIMEOUT), writing a response (WRITE_TIMEOUT, pushed back on
+	// every write progress) and waiting for the next request (KeepAliveTimeout)
+	TimingWheel.Timer timer;
 
-	int contentLength = -1; // for POST request
+	CGIProcess cgi; // the CGI process running for the current request, if any
+	ByteBuffer cgiChunk; // the chunk of the CGI output being put into outBuffer
+	boolean cgiHeaderSent = false; // whether the status line & headers of the CGI response have been put into outBuffer
 
-	long createTime; // the time that the object (i.e. the connection) is created
+	EventLoop eventLoop; // the event loop that owns the connection (and recycles the handler)
+	boolean closed = true; // whether the handler is not bound to a connection
 
-	public SelectHTTPRequestHandler() {
+	public SelectHTTPRequestHandler(EventLoop eventLoop) {
+		this.eventLoop = eventLoop;
 		state = State.READING_HEADER;
-		inBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-		outBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-		request = new StringBuilder(BUFFER_SIZE);
-		data = new StringBuilder(BUFFER_SIZE);
-		createTime = System.currentTimeMillis();
+		parser = new HTTPRequestParser();
+		timer = new TimingWheel.Timer(null);
+	}
+
+	/**
+	 * bind the (new or recycled) handler to a newly accepted connection
+	 * @param key
+	 */
+	public void open(SelectionKey key) {
+		cleanup();
+		numRequests = 0;
+		closed = false;
+		timer.key = key;
+		requestStart = System.nanoTime();
+		Metrics.connectionOpened();
+		// the first request must arrive in HEADER_TIMEOUT
+		setTimeout(SelectHTTPServer.HEADER_TIMEOUT);
+	}
+
+	// clean up all the request fields, so that the next request on a persistent connection can use the handler
+	// note that inBuffer is not cleared because it may hold pipelined requests
+	public void cleanup() {
+		state = State.READING_HEADER;
+		releaseOutBuffer();
+		fileInBytes = null;
+		fileInBytesIdx = 0;
+		release();
+		filePosition = 0;
+		fileLength = 0;
+		ranges = null;
+		rangeIdx = 0;
+		parser.reset();
+		if(body != null) {
+			body.discard();
+			body = null;
+		}
+		filePath = null;
+		file = null;
+		myVH = null;
+		requestType = 0;
+		userAgent = UNKNOWN_USER;
+		query_string = null;
+		usingHeartbeatingMonitor = false;
+		usingMetrics = false;
+		status = 0;
+		bytesSent = 0;
+		ifModifiedSince = -1;
+		lastModified = -1;
+		etag = null;
+		openFile = null;
+		cacheEntry = null;
+		contentLength = -1;
+		keepAlive = true;
+		cgiChunk = null;
+		cgiHeaderSent = false;
 	}
 
-	/* a simple state to record \n\r\n (i.e., the boundary between header & data)
-	* this field cannot be put in the handleRead function as a temporary variable 
-	* because \n\r\n may break in the middle and from two successive reads
-	*/
-	int countNRN = 0; 
 	/**
-	 * read data from key.channel into request (HTTP status line & header) and data (HTTP data)
+	 * read data from key.channel into inBuffer and process it
 	 * @param key
 	 * @throws IOException
 	 */
 	public void handleRead(SelectionKey key) throws IOException {
-		// the state must be either READING_HEADER or READING_DATA
-		if(state != State.READING_HEADER && state != State.READING_DATA) {
+		// the state must be READING_HEADER, or the rest of the body must be on its way
+		if(state != State.READING_HEADER && !isReadingBody()) {
 			return;
 		}
 
 		SocketChannel client = (SocketChannel) key.channel();
+		if(inBuffer == null)
+			inBuffer = eventLoop.getBufferPool().acquire();
 		int readBytes = client.read(inBuffer);
 		Util.DEBUG("handleRead: Read from " + client + " for " + readBytes + " Bytes to buffer " + inBuffer);
 
 		if (readBytes == -1) { // end of stream
-			state = State.GENERATING_RESPONSE;
 			Util.DEBUG("handleRead: readBytes == -1");
-		}
-
-		inBuffer.flip(); // read input
-		
-		// read into request
-		while (inBuffer.hasRemaining() && state == State.READING_HEADER) {
-			char ch = (char) inBuffer.get();
-			//Util.DEBUG("Ch: " + ch);
-			request.append(ch);
-			if(ch == '\n') countNRN++;
-			else if(ch == '\r' && countNRN == 1) countNRN++;
-			else countNRN = 0;
-
-			// NNN (should not happen) or NRN
-			if(countNRN == 3){
-				state = State.READING_DATA;
+			// the client closed an idle persistent connection
+			if(isIdle()) {
+				close(key);
+				return;
+			}
+			// the client has gone away before the end of the body, the response is not needed
+			if(isReadingBody()) {
+				body.fail(new EOFException("the client closed the connection before the end of the body"));
+				close(key);
+				return;
 			}
-		} 
+			state = State.GENERATING_RESPONSE;
+			keepAlive = false;
+		}
 
-		// read into data
-		while (inBuffer.hasRemaining() && state == State.READING_DATA) {
-			char ch = (char) inBuffer.get();
-			//Util.DEBUG("ChD: " + ch);
-			data.append(ch);
-		} 
+		processInput(key);
+	}
 
-		Util.DEBUG("<request>\n" + request.toString());
-		Util.DEBUG("<data>\n" + data.toString());
+	/**
+	 * feed the bytes in inBuffer to parser (HTTP status line & header) and the rest to body (HTTP data),
+	 * and generate the response once the request line & headers have been received.
+	 * Bytes that belong to the next (pipelined) request are left in inBuffer
+	 * @param key
+	 * @throws IOException
+	 */
+	private void processInput(SelectionKey key) throws IOException {
+		inBuffer.flip(); // read input
 
-		// we make sure that it's always clean when the buffer is used for the next time
-		inBuffer.clear();
+		// the rest of the body, while the response is generated or sent
+		// (on EOF after a partial request the state is GENERATING_RESPONSE without a body, which is answered 400 below)
+		if(isReadingBody() || state == State.DISCARDING_BODY) {
+			receiveBody(key);
+			return;
+		}
 
-		if(contentLength == -1 && state == State.READING_DATA){
-			int CLHeader = request.indexOf("Content-Length:");
-			// GET request that has no Content-Length header
-			if(CLHeader == -1){
+		if(parser.isEmpty() && inBuffer.hasRemaining()) {
+			// the first byte of a new request, the whole request must arrive in HEADER_TIMEOUT
+			setTimeout(SelectHTTPServer.HEADER_TIMEOUT);
+			requestStart = System.nanoTime();
+		}
+		
+		// parse the request line & headers (resumes where the last read stopped)
+		if(state == State.READING_HEADER) {
+			int result = parser.parse(inBuffer);
+			if(result == HTTPRequestParser.COMPLETE) {
+				contentLength = parser.getContentLength();
+				if(isBodyTooLarge()) {
+					// parseRequest() answers 413 and closes the connection, the rest of the input is dropped
+					inBuffer.position(inBuffer.limit());
+				} else if(contentLength > 0) {
+					body = new RequestBody(contentLength);
+				}
+				state = State.GENERATING_RESPONSE;
+			} else if(result == HTTPRequestParser.ERROR) {
+				// parseRequest() answers 400 and closes the connection, the rest of the input is dropped
+				inBuffer.position(inBuffer.limit());
 				state = State.GENERATING_RESPONSE;
-			} else {
-				int nextRN = request.indexOf("\r\n", CLHeader);
-				contentLength = Integer.parseInt(request.substring(CLHeader + 15, nextRN).trim());
 			}
 		}
 
-		if(contentLength == data.length()) {
-			state = State.GENERATING_RESPONSE;
-		}
+		// the beginning of the body (at most contentLength bytes, the rest belongs to the next request)
+		if(body != null)
+			body.write(inBuffer);
 
-		if(contentLength != -1 && data.length() > contentLength){
-			state = State.GENERATING_RESPONSE;
-		}
+		Util.DEBUG("<request>\n" + parser);
+		Util.DEBUG("<body>\n" + body);
+
+		// keep the bytes of a pipelined request for the next round
+		inBuffer.compact();
+		if(inBuffer.position() == 0)
+			releaseInBuffer();
 
 		Util.DEBUG("contentLength == " + contentLength);
-		Util.DEBUG("The current state is " + (state == State.GENERATING_RESPONSE ? "GENERATING_RESPONSE" : "READING"));
+		Util.DEBUG("The current state is " + state);
 
 		// generate response
 		if(state == State.GENERATING_RESPONSE) {
-			// turn off read
-			turnOff(key, SelectionKey.OP_READ);
+			// turn off read, unless the rest of the body is on its way
+			if(!isReadingBody())
+				turnOff(key, SelectionKey.OP_READ);
+
+			outBuffer = eventLoop.getBufferPool().acquire();
+
+			// the response must make progress in WRITE_TIMEOUT
+			setTimeout(SelectHTTPServer.WRITE_TIMEOUT);
 
 			// error message ready
 			if(parseRequest() == -1) {
@@ -167,14 +282,28 @@ class SelectHTTPRequestHandler {
 				return;
 			}
 
+			if(usingMetrics) {
+				state = outputMetrics() == -1 ? State.LAST_RESPONSE_READY : State.RESPONSE_READY;
+				turnOn(key, SelectionKey.OP_WRITE);
+				return;
+			}
+
 			// Put the file (headers and data) into out response
 			// The function outputFile() does all the validity checking and may use CGI if
 			// the file is an executable and may use cache if it is a static file.
-			if(outputFile(key) == -1) {
+			int result = outputFile(key);
+			// only a CGI script consumes the body
+			if(cgi == null && body != null)
+				body.discard();
+			if(result == -1) {
 				state = State.LAST_RESPONSE_READY;
 				turnOn(key, SelectionKey.OP_WRITE);
 				return;
 			}
+			// the response is written as the CGI process outputs (see cgiOutputReady)
+			if(state == State.RUNNING_CGI) {
+				return;
+			}
 			state = State.RESPONSE_READY;
 			turnOn(key, SelectionKey.OP_WRITE);
 			return;
@@ -188,37 +317,155 @@ class SelectHTTPRequestHandler {
 		if(state != State.RESPONSE_READY && state != State.LAST_RESPONSE_READY)
 			return;
 
-		outBuffer.flip();
-
 		SocketChannel client = (SocketChannel) key.channel();
-		int writeBytes = client.write(outBuffer);
-		Util.DEBUG("handleWrite: write " + writeBytes + " bytes; after write " + outBuffer);
-		
-		// test whether client.write(outBuffer) cleans the outBuffer
-		if(outBuffer.hasRemaining()) {
-			Util.DEBUG("write does not clear outBuffer!");
-			return; // wait for next write
+
+		if(outBuffer != null) {
+			outBuffer.flip();
+
+			int writeBytes = client.write(outBuffer);
+			Util.DEBUG("handleWrite: write " + writeBytes + " bytes; after write " + outBuffer);
+			if(writeBytes > 0) {
+				bytesSent += writeBytes;
+				setTimeout(SelectHTTPServer.WRITE_TIMEOUT);
+			}
+			
+			// test whether client.write(outBuffer) cleans the outBuffer
+			if(outBuffer.hasRemaining()) {
+				Util.DEBUG("write does not clear outBuffer!");
+				outBuffer.compact(); // keep the rest for next write
+				return; // wait for next write
+			}
+
+			outBuffer.clear(); // for next write
 		}
 
-		outBuffer.clear(); // for next write
+		// the headers have been sent, now send the file directly from the file channel
+		if(fileChannel != null) {
+			// outBuffer is not needed any more
+			releaseOutBuffer();
+
+			// nothing is left of the current range once only the delimiters of a multipart response are sent
+			if(filePosition < fileLength) {
+				long transferBytes = fileChannel.transferTo(filePosition, fileLength - filePosition, client);
+				filePosition += transferBytes;
+				Util.DEBUG("handleWrite: transfer " + transferBytes + " bytes; " + filePosition + "/" + fileLength);
+				if(transferBytes > 0) {
+					bytesSent += transferBytes;
+					setTimeout(SelectHTTPServer.WRITE_TIMEOUT);
+				} else if(filePosition >= fileChannel.size()) {
+					// the file has shrunk since the headers were sent, Content-Length cannot be honored
+					Util.DEBUG("handleWrite: unexpected end of file at " + filePosition + "/" + fileLength);
+					close(key);
+					return;
+				}
+				if(filePosition < fileLength) {
+					return; // wait for next write
+				}
+			}
+			// the next range of a multipart/byteranges response
+			if(nextPart() != -1) {
+				return; // wait for next write
+			}
+			release();
+			state = State.LAST_RESPONSE_READY;
+		}
 
 		if (state == State.LAST_RESPONSE_READY) {
 			Util.DEBUG("handleWrite: responseSent");
-			state = State.RESPONSE_SENT;
-			//turnOff(key, SelectionKey.OP_WRITE);
-			client.close();
-			key.cancel();
+			if(status != 0)
+				Metrics.request(myVH != null ? myVH.getServerName() : null, status, bytesSent, System.nanoTime() - requestStart);
+			// the next request starts after the body, which must be read (and dropped) first
+			if(isReadingBody() && keepAlive && !SelectHTTPServer.stop) {
+				state = State.DISCARDING_BODY;
+				body.discard();
+				releaseOutBuffer();
+				turnOff(key, SelectionKey.OP_WRITE);
+				// the rest of the body must make progress in HEADER_TIMEOUT
+				setTimeout(SelectHTTPServer.HEADER_TIMEOUT);
+				return;
+			}
+			responseSent(key);
 			return;
 		}
 
 		if(state == State.RESPONSE_READY){
 			if(outputResponseBody() == -1){
 				state = State.LAST_RESPONSE_READY;
+			} else if(cgi != null && outBuffer.position() == 0) {
+				// the client has all of the CGI output so far
+				waitForCGI(key);
 			}
 		}
 
 	}
 
+	/**
+	 * the whole response (and request) is done: close the connection, or wait for
+	 * (or answer the already buffered) next request on a persistent connection
+	 * @param key
+	 * @throws IOException
+	 */
+	private void responseSent(SelectionKey key) throws IOException {
+		state = State.RESPONSE_SENT;
+		if(!keepAlive || SelectHTTPServer.stop) {
+			close(key);
+			return;
+		}
+		cleanup();
+		setTimeout(SelectHTTPServer.keepAliveTimeout);
+		turnOff(key, SelectionKey.OP_WRITE);
+		turnOn(key, SelectionKey.OP_READ);
+		if(inBuffer != null) {
+			processInput(key);
+		}
+	}
+
+	/**
+	 * feed the rest of the body in inBuffer (in read mode) to body, while the response is
+	 * generated or sent (or after it, see DISCARDING_BODY)
+	 * Bytes that belong to the next (pipelined) request are left in inBuffer
+	 * @param key
+	 * @throws IOException
+	 */
+	private void receiveBody(SelectionKey key) throws IOException {
+		if(isReadingBody() && inBuffer.hasRemaining()) {
+			body.write(inBuffer);
+			// receiving the body is progress as well
+			if(state == State.RUNNING_CGI)
+				setTimeout(SelectHTTPServer.CGI_TIMEOUT);
+			else if(state == State.DISCARDING_BODY)
+				setTimeout(SelectHTTPServer.HEADER_TIMEOUT);
+			else
+				setTimeout(SelectHTTPServer.WRITE_TIMEOUT);
+		}
+		Util.DEBUG("<body>\n" + body);
+
+		// keep the bytes of a pipelined request for the next round
+		inBuffer.compact();
+		if(inBuffer.position() == 0)
+			releaseInBuffer();
+
+		if(!isReadingBody()) {
+			turnOff(key, SelectionKey.OP_READ);
+			if(state == State.DISCARDING_BODY)
+				responseSent(key);
+		}
+	}
+
+	/**
+	 * whether the rest of the body of the current request is on its way
+	 */
+	private boolean isReadingBody() {
+		return body != null && !body.isComplete();
+	}
+
+	/**
+	 * whether the Content-Length is over LimitRequestBody
+	 */
+	private boolean isBodyTooLarge() {
+		return SelectHTTPServer.limitRequestBody > 0 && contentLength > SelectHTTPServer.limitRequestBody;
+	}
+
 	/**
 	 * Send the file back to the client
 	 * The method will first check the validity of the file, then try to 
@@ -228,51 +475,28 @@ class SelectHTTPRequestHandler {
 	 */
 	private int outputFile(SelectionKey key) throws IOException {
 		
-		file = new File(filePath);
-
-		// use index.html or index_m.html if file is a directory
-		if(file.isDirectory()){
-			if(userAgent == PC_USER || userAgent == UNKNOWN_USER) {
-				file = new File(file.getCanonicalPath() + "/index.html");
-			} else if(userAgent == PHONE_USER){
-				String fileDir = file.getCanonicalPath();
-				file = new File(fileDir + "/index_m.html");
-				if(!file.exists()){
-					file = new File(fileDir + "/index.html");
-				}
-			}
-		}
+		// resolve the file (from OpenFileCache if it is set)
+		openFile = OpenFileCache.resolve(SelectHTTPServer.openFileCache, filePath, myVH.getDocRoot(), userAgent == PHONE_USER);
+		file = openFile.getFile();
 
 		// the file must be contained in the root directory
-		File rootDir = new File(myVH.getDocRoot());
-		if(!file.getCanonicalPath().startsWith(rootDir.getCanonicalPath())){
-			Util.DEBUG(file.getCanonicalPath() + " is out of root directory!");
+		if(openFile.getKind() == OpenFileCache.FORBIDDEN) {
+			Util.DEBUG(openFile.getCanonicalPath() + " is out of root directory!");
 			outputError(403, "Forbidden");
 			return -1;
 		}
 
 		// test whether the file exists
-		if(!file.isFile()){
-			Util.DEBUG(file.getCanonicalPath() + " does not exist!");
+		if(openFile.getKind() == OpenFileCache.NOT_FOUND) {
+			Util.DEBUG(openFile.getCanonicalPath() + " does not exist!");
 			outputError(404, "Not Found");
 			return -1;
 		}
 
-		// ifModifiedSince is not null
-		if(ifModifiedSince != null) {
-			Date lastModifiedTime = new Date(file.lastModified());
-			// ignore the millisecond
-			if(ifModifiedSince.getTime() / 1000 >= lastModifiedTime.getTime() / 1000){
-				// not exactly an error, but we can use the same interface
-				outputError(304, "Not Modified"); 
-				return -1;
-			}
-		}
-
-		Util.DEBUG("File: " + file.getCanonicalPath());
+		Util.DEBUG("File: " + openFile.getCanonicalPath());
 
 		// If the file is executable, use CGI
-		if(file.canExecute()){
+		if(openFile.getKind() == OpenFileCache.CGI) {
 			Util.DEBUG("This file is executable. Use CGI!");
 			CGI(key);
 			return 0;
@@ -284,10 +508,28 @@ class SelectHTTPRequestHandler {
 			return -1;
 		}
 
+		// look up the cache first, so that the headers describe the content that is sent
+		getResponseBodyFromCache();
+		lastModified = cacheEntry != null ? cacheEntry.getLastModified() : openFile.getLastModified();
+		long length = cacheEntry != null ? cacheEntry.size() : openFile.getLength();
+		etag = cacheEntry != null ? cacheEntry.getETag() : openFile.getETag();
+
+		// If-None-Match or If-Modified-Since header (a cached file is checked against its entry)
+		if(notModified()) {
+			outputNotModified();
+			return -1;
+		}
+
+		// Range header (ignored if the file has changed since the If-Range tag or date)
+		if(parser.getRange() != null && ByteRanges.ifRange(parser.getIfRange(), lastModified, etag)) {
+			ranges = ByteRanges.parse(parser.getRange(), length);
+			if(ranges != null)
+				return outputRanges(length);
+		}
+
 		outputResponseHeader();
 		writeBytes("\r\n");
 
-		getResponseBodyFromCache();
 		return outputResponseBody();
 	}
 
@@ -299,31 +541,54 @@ class SelectHTTPRequestHandler {
 	private int outputResponseBody() throws IOException {
 		int fileLength;
 
+		// the output of a CGI process
+		if(cgi != null) {
+			return outputCGIOutput();
+		}
+
+		// If the file is not in cache and cannot be cached, send it with transferTo
+		// so that the file content never enters the Java heap
+		// (and so are the ranges of a file that is not in cache, which is not read as a whole)
+		if(fileInBytes == null && fileChannel == null && (ranges != null || !cacheable())) {
+			fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			if(ranges == null) {
+				filePosition = 0;
+				this.fileLength = openFile.getLength(); // as sent in the Content-Length header
+			}
+			return 0;
+		}
+
 		// If the file is not in cache
 		if(fileInBytes == null) {
-			// read file content
-			fileLength = (int)file.length();
+			// read file content (lastModified has been taken before reading, so a concurrent change is detected later)
+			fileLength = (int)openFile.getLength();
 			FileInputStream fileStream = new FileInputStream(file);
 
 			fileInBytes = new byte[fileLength];
-			fileStream.read(fileInBytes);
-			fileStream.close();
-		
-			// put the file content into cache if possible
-			// do nothing if the cache is full. There is no replacement policy
-			if(SelectHTTPServer.cache != null && fileInBytes.length + SelectHTTPServer.cacheCurrentSize <= SelectHTTPServer.cacheMaxSize){
-				SelectHTTPServer.cache.put(file, fileInBytes);
-				SelectHTTPServer.cacheCurrentSize += fileInBytes.length;
+			try {
+				if(fileStream.readNBytes(fileInBytes, 0, fileLength) < fileLength)
+					throw new EOFException(file + " is shorter than " + fileLength + " bytes");
+			} finally {
+				fileStream.close();
 			}
+
+			// put the file content into cache (least recently used files may be evicted)
+			SelectHTTPServer.cache.put(file, fileInBytes, lastModified);
 		} else {
-			fileLength = fileInBytes.length;
+			// the end of the range being sent, or of the whole content
+			fileLength = ranges != null ? (int)this.fileLength : fileInBytes.length;
 		}
 
 		// we can write maxWrite bytes
 		int maxWrite = outBuffer.remaining();
 		if(maxWrite >= fileLength - fileInBytesIdx){
 			outBuffer.put(fileInBytes, fileInBytesIdx, fileLength - fileInBytesIdx);
-			return -1;
+			fileInBytesIdx = fileLength;
+			// the next range of a multipart/byteranges response
+			int next = nextPart();
+			if(next == 1)
+				return outputResponseBody();
+			return next == 0 ? 0 : -1;
 		} else {
 			outBuffer.put(fileInBytes, fileInBytesIdx, maxWrite);
 			fileInBytesIdx += maxWrite;
@@ -331,46 +596,190 @@ class SelectHTTPRequestHandler {
 		}
 	}
 
+	/**
+	 * whether the file can be put into the cache
+	 */
+	private boolean cacheable() {
+		return SelectHTTPServer.cache != null && SelectHTTPServer.cache.fits(openFile.getLength());
+	}
+
+	/**
+	 * close the file channel of the current response if any
+	 */
+	public void release() {
+		if(fileChannel != null) {
+			try {
+				fileChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			fileChannel = null;
+		}
+	}
+
 	/**
 	 * get the file directly from cache if possible
 	 * @throws IOException
 	 */
 	private void getResponseBodyFromCache() throws IOException {
 		// note that if the content get cached and then get modified, the old content will still be returned
-		if(SelectHTTPServer.cache != null && SelectHTTPServer.cache.containsKey(file)){
-			Util.DEBUG("cacheSize:" + SelectHTTPServer.cacheCurrentSize + "; cacheMaxSize:" + SelectHTTPServer.cacheMaxSize);
-			fileInBytes = SelectHTTPServer.cache.get(file);
-		}	
+		// the cache is shared by all the event loops
+		if(SelectHTTPServer.cache != null){
+			cacheEntry = SelectHTTPServer.cache.get(file);
+			if(cacheEntry != null)
+				fileInBytes = cacheEntry.getContent();
+			Util.DEBUG(SelectHTTPServer.cache.toString());
+		}
 	}
 
 	private void outputResponseHeader() throws IOException {
+		status = 200;
 		writeBytes("HTTP/1.1 200 OK\r\n");
+		outputFileHeaders(contentType());
+
+		// Content-Type header (encoded once per resolved file)
+		writeBytes(openFile.getContentTypeHeader());
+
+		// Content-Length header
+		writeBytes("Content-Length: " + (cacheEntry != null ? cacheEntry.size() : openFile.getLength()) + "\r\n");
 
-		// Date header
-		Date currentTime = new Date();
-		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss z");
-		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-		writeBytes("Date: " + sdf.format(currentTime) + "\r\n");
+		// Connection header
+		outputConnectionHeader();
+	}
+
+	/**
+	 * Put the headers of a response with (part of) the file into outBuffer, but Content-Type,
+	 * Content-Length and Connection
+	 * @param contentType of the file
+	 */
+	private void outputFileHeaders(String contentType) throws IOException {
+		// Date header (formatted once per second)
+		writeBytes(HTTPDate.dateHeader());
 
 		// Server header
 		writeBytes("Server: " + SelectHTTPServer.SERVER_NAME + "\r\n");
 
-		// Last-Modified header
-		Date lastModifiedTime = new Date(file.lastModified());
-		writeBytes("Last-Modified: " + sdf.format(lastModifiedTime) + "\r\n");
+		// Last-Modified and ETag headers (formatted once per cache entry or resolved file)
+		if(cacheEntry != null) {
+			writeBytes(cacheEntry.getLastModifiedHeader());
+			writeBytes(cacheEntry.getETagHeader());
+		} else {
+			writeBytes(openFile.getLastModifiedHeader());
+			writeBytes(openFile.getETagHeader());
+		}
 
-		// Content-Type header
-		if (file.getCanonicalPath().endsWith(".jpg"))
-			writeBytes("Content-Type: image/jpeg\r\n");
-		else if (file.getCanonicalPath().endsWith(".gif"))
-			writeBytes("Content-Type: image/gif\r\n");
-		else if (file.getCanonicalPath().endsWith(".html") || file.getCanonicalPath().endsWith(".htm"))
-			writeBytes("Content-Type: text/html\r\n");
-		else // including .txt file
-			writeBytes("Content-Type: text/plain\r\n");
+		// Cache-Control and Expires headers of the virtual host (see CachePolicy)
+		byte[] cachingHeaders = myVH.getCachePolicy().headers(contentType);
+		if(cachingHeaders != null)
+			writeBytes(cachingHeaders);
 
-		// Content-Length header
-		writeBytes("Content-Length: " + (int)file.length()+ "\r\n");
+		// Accept-Ranges header (see outputRanges)
+		writeBytes("Accept-Ranges: bytes\r\n");
+	}
+
+	/**
+	 * whether the client already has the file: If-None-Match matches its entity tag, or if
+	 * If-None-Match is not present, the file has not been modified since If-Modified-Since
+	 */
+	private boolean notModified() {
+		String ifNoneMatch = parser.getIfNoneMatch();
+		if(ifNoneMatch != null)
+			return ETag.noneMatch(ifNoneMatch, etag);
+		// ignore the millisecond
+		return ifModifiedSince != -1 && ifModifiedSince / 1000 >= lastModified / 1000;
+	}
+
+	/**
+	 * Put a 304 with the validators and the caching headers of the file into outBuffer (and no body)
+	 */
+	private void outputNotModified() throws IOException {
+		status = 304;
+		writeBytes("HTTP/1.1 304 Not Modified\r\n");
+		outputFileHeaders(contentType());
+		outputConnectionHeader();
+		writeBytes("\r\n");
+	}
+
+	/**
+	 * @return the media type of the file
+	 */
+	private String contentType() {
+		return openFile.getContentType();
+	}
+
+	/**
+	 * Put the response to a Range request into outBuffer: a 206 with the range, or with a
+	 * multipart/byteranges body for several ranges, or a 416 if no range is satisfiable
+	 * The ranges are sent from the cache entry if any, and otherwise transferred from their
+	 * positions in the file (see outputResponseBody and handleWrite), so only the bytes asked
+	 * for are read. The part headers are put between the ranges by nextPart.
+	 * @param length of the file
+	 * @return -1 if all data is put into outBuffer, 0 otherwise (more rounds of writes are needed)
+	 */
+	private int outputRanges(long length) throws IOException {
+		Util.DEBUG(ranges.toString());
+		if(!ranges.isSatisfiable()) {
+			status = 416;
+			writeBytes("HTTP/1.1 416 Range Not Satisfiable\r\n");
+			writeBytes("Server: " + SelectHTTPServer.SERVER_NAME + "\r\n");
+			writeBytes(ByteRanges.unsatisfiableHeader(length));
+			writeBytes("Content-Length: 0\r\n");
+			outputConnectionHeader();
+			writeBytes("\r\n");
+			return -1;
+		}
+
+		status = 206;
+		writeBytes("HTTP/1.1 206 Partial Content\r\n");
+		String contentType = contentType();
+		outputFileHeaders(contentType);
+		if(ranges.isMultipart()) {
+			long contentLength = ranges.multipart(contentType);
+			writeBytes("Content-Type: " + ByteRanges.MULTIPART_CONTENT_TYPE + "\r\n");
+			writeBytes("Content-Length: " + contentLength + "\r\n");
+		} else {
+			writeBytes(openFile.getContentTypeHeader());
+			writeBytes(ranges.contentRangeHeader());
+			writeBytes("Content-Length: " + ranges.size(0) + "\r\n");
+		}
+		outputConnectionHeader();
+		writeBytes("\r\n");
+
+		rangeIdx = 0;
+		if(ranges.isMultipart())
+			writeBytes(ranges.delimiter(0));
+		enterRange();
+		return outputResponseBody();
+	}
+
+	/**
+	 * Start sending the range rangeIdx, from the cache entry or from the file channel
+	 */
+	private void enterRange() {
+		fileInBytesIdx = (int)ranges.start(rangeIdx);
+		filePosition = ranges.start(rangeIdx);
+		fileLength = ranges.end(rangeIdx) + 1;
+	}
+
+	/**
+	 * Put the part header of the next range of a multipart/byteranges response (or the closing
+	 * delimiter after the last range) into outBuffer, and move to that range
+	 * @return 1 if it has been put, 0 if outBuffer has no room for it yet, -1 if the response is complete
+	 */
+	private int nextPart() {
+		if(ranges == null || !ranges.isMultipart() || rangeIdx == ranges.count())
+			return -1;
+		// outBuffer is released while the file channel is transferring
+		if(outBuffer == null)
+			outBuffer = eventLoop.getBufferPool().acquire();
+		byte[] delimiter = ranges.delimiter(rangeIdx + 1);
+		if(outBuffer.remaining() < delimiter.length)
+			return 0;
+		outBuffer.put(delimiter);
+		rangeIdx++;
+		if(rangeIdx < ranges.count())
+			enterRange();
+		return 1;
 	}
 
 	/**
@@ -379,104 +788,80 @@ class SelectHTTPRequestHandler {
 	 * @throws IOException
 	 */
 	int parseRequest() throws IOException{
-		// each item in requestsArr is a line
-		String requestsArr[] = request.toString().split("\\r\\n");
-		String requestMessageLine = requestsArr[0];
-		Util.DEBUG("Request: " + requestMessageLine);
-		// If EOF is reached
-		if(requestMessageLine == null) {
-			outputError(400, "Bad Request");
-			return -1;
-		}
-			
-		// process the request
-		String[] request = requestMessageLine.split("\\s");
+		numRequests++;
 
-		if (request.length < 2) {
+		// the request line & headers have been parsed while reading
+		Util.DEBUG("Request: " + parser);
+		// If EOF is reached, or the request is malformed
+		if(!parser.isComplete()) {
 			outputError(400, "Bad Request");
 			return -1;
 		}
 
 		// parse request type
-		if(request[0].trim().toUpperCase().equals("GET")){
+		if(parser.getMethod() == HTTPRequestParser.GET){
 			requestType = GET_REQUEST;
-		} else if(request[0].trim().toUpperCase().equals("POST")){
+		} else if(parser.getMethod() == HTTPRequestParser.POST){
 			requestType = POST_REQUEST;
 		} else {
 			outputError(400, "Bad Request");
 			return -1;
 		}
 
+		// HTTP/1.1 connections are persistent by default, while HTTP/1.0 ones are not
+		// (unless the Connection header says otherwise)
+		if(!parser.isKeepAlive()){
+			keepAlive = false;
+		}
+
+		// Content-Length header (the body is read alongside the response)
+		if(isBodyTooLarge()){
+			Util.DEBUG("request body of " + contentLength + " bytes is over LimitRequestBody");
+			outputError(413, "Payload Too Large");
+			return -1;
+		}
+
 		// parse URL to retrieve file name
-		String urlName = request[1].trim();
+		String urlName = parser.getPath();
 		// if there exists any query string for CGI
-		if(urlName.contains("?") && requestType == GET_REQUEST){
-			int q_index = urlName.indexOf("?");
-			query_string = urlName.substring(q_index + 1).trim();
-			urlName = urlName.substring(0, q_index).trim();
-		}
+		query_string = parser.getQuery();
 
 		if (urlName.startsWith("/") == true)
 			urlName = urlName.substring(1);
-		
-		// read header
-		String line;
-		for(int i = 1; i < requestsArr.length; i++) {
-			line = requestsArr[i];
-			int idx = line.indexOf(":");
-			if(idx == -1) {
-				Util.DEBUG(line);
-				outputError(400, "Bad Request");
-				return -1;
-			}
-			String header = line.substring(0, idx).trim();
-			String content = line.substring(idx + 1).trim();
-			Util.DEBUG("<" + header + ":" + content + ">");
-
-			// Host header
-			if(header.toLowerCase().equals("host")){
-				String host = content;
-				// ignore port number if any
-				if(host.contains(":"))
-					host = content.substring(0, content.indexOf(":")).trim();
-				// search the host in the HashMap
-				if(SelectHTTPServer.virtualHosts.containsKey(host)){
-					VirtualHost vh = SelectHTTPServer.virtualHosts.get(host);
-					myVH = vh;
-					String docRoot = vh.getDocRoot().trim();
-					if(docRoot.endsWith("/")){
-						filePath = docRoot + urlName;
-					} else {
-						filePath = docRoot + "/" + urlName;
-					}
-				} else {
-					// use the default host
-				}
-			}
-			// User-Agent header
-			else if(header.toLowerCase().equals("user-agent")){
-				if(content.toLowerCase().contains("iphone") || content.toLowerCase().contains("phone")){
-					userAgent = PHONE_USER;
-				} else {
-					userAgent = PC_USER;
-				}
+
+		// Host header
+		String host = parser.getHost();
+		// search the host in the HashMap
+		if(host != null && SelectHTTPServer.virtualHosts.containsKey(host)){
+			VirtualHost vh = SelectHTTPServer.virtualHosts.get(host);
+			myVH = vh;
+			String docRoot = vh.getDocRoot().trim();
+			if(docRoot.endsWith("/")){
+				filePath = docRoot + urlName;
+			} else {
+				filePath = docRoot + "/" + urlName;
 			}
-			// Content-Length header
-			else if(header.toLowerCase().equals("content-length")){
-				contentLength = Integer.parseInt(content);
+		} else {
+			// use the default host
+		}
+
+		// User-Agent header
+		if(parser.hasUserAgent()){
+			if(parser.isPhoneUserAgent()){
+				userAgent = PHONE_USER;
+			} else {
+				userAgent = PC_USER;
 			}
-			// If-Modified-Since header
-			else if(header.toLowerCase().equals("if-modified-since")){
-				SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss z");
-				sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-				try {
-					ifModifiedSince = sdf.parse(content);
-				} catch(ParseException e){
-					outputError(400, "Bad Request");
-					return -1;
-				}
-				Util.DEBUG("ifModifiedSince:" + ifModifiedSince.toString());
+		}
+
+		// If-Modified-Since header
+		if(parser.hasIfModifiedSince()){
+			ifModifiedSince = parser.getIfModifiedSince();
+			if(ifModifiedSince == -1){
+				outputError(400, "Bad Request");
+				return -1;
 			}
+			Util.DEBUG("ifModifiedSince:" + HTTPDate.format(ifModifiedSince));
 		}
 
 		// If no Host header has been found
@@ -494,6 +879,11 @@ class SelectHTTPRequestHandler {
 		if(urlName.equals("load")){
 			usingHeartbeatingMonitor = true;
 		}
+
+		// set metrics
+		if(urlName.equals("metrics")){
+			usingMetrics = true;
+		}
 		
 		return 0;
 	}
@@ -502,9 +892,17 @@ class SelectHTTPRequestHandler {
 	 * file is an executable and use CGI to execute it
 	 */
 	public void CGI(SelectionKey key) throws IOException{
-		// build the process
-		ProcessBuilder pb = new ProcessBuilder(file.getCanonicalPath());
- 		Map<String, String> env = pb.environment();
+		// build the process, or the request to the FastCGI responder of the virtual host
+		ProcessBuilder pb = null;
+		FastCGIClient fastCGI = null;
+		Map<String, String> env;
+		if(myVH.getFastCGIPass() != null) {
+			fastCGI = FastCGIClient.get(myVH.getFastCGIPass());
+			env = new HashMap<>();
+		} else {
+			pb = new ProcessBuilder(openFile.getCanonicalPath());
+			env = pb.environment();
+		}
 
 		// set environment variables
 		if(query_string != null)
@@ -524,28 +922,86 @@ class SelectHTTPRequestHandler {
 		env.put("SERVER_PORT", "" + SelectHTTPServer.serverPort);
 		env.put("SERVER_PROTOCOL", "HTTP/1.1");
 		env.put("SERVER_SOFTWARE", SelectHTTPServer.SERVER_NAME);
+		env.put("GATEWAY_INTERFACE", "CGI/1.1");
+		env.put("SCRIPT_FILENAME", openFile.getCanonicalPath());
 		env.put("REMOTE_ADDR", ((SocketChannel)key.channel()).socket().getInetAddress().getHostAddress());
-		env.put("REMOTE_HOST", ((SocketChannel)key.channel()).socket().getInetAddress().getHostName());
+		// REMOTE_HOST is set by CGIProcess, since the reverse DNS lookup may block
 		env.put("REMOTE_IDENT", ""); // the authentication env variale is ignored
 		env.put("REMOTE_USER", ""); // the authentication env variale is ignored
 
-		// start the process and connect IO
-		Process p = pb.start();
-		InputStream inputStream = p.getInputStream();
-		BufferedReader r = new BufferedReader(new InputStreamReader(inputStream));
-		if(requestType == POST_REQUEST && contentLength != -1) {
-			DataOutputStream outstr = new DataOutputStream(p.getOutputStream());
-			outstr.writeBytes(data.toString());
-			outstr.flush();
+		// the process runs in the offload executor, and cgiOutputReady() is called back in the event loop
+		// the body is its stdin (note that in our implementation POST for CGI is the only request that uses data)
+		RequestBody input = null;
+		if(requestType == POST_REQUEST) {
+			input = body;
+		} else if(body != null) {
+			body.discard();
+		}
+		cgi = new CGIProcess(pb, fastCGI, env, input, ((SocketChannel)key.channel()).socket().getInetAddress(),
+				SelectHTTPServer.cgiExecutor, eventLoop, this);
+		cgi.start();
+		waitForCGI(key);
+	}
+
+	/**
+	 * wait (without any buffer) until the CGI process outputs more, see cgiOutputReady
+	 * @param key
+	 */
+	private void waitForCGI(SelectionKey key) {
+		state = State.RUNNING_CGI;
+		releaseOutBuffer();
+		turnOff(key, SelectionKey.OP_WRITE);
+		// the script must output something in CGI_TIMEOUT
+		setTimeout(SelectHTTPServer.CGI_TIMEOUT);
+	}
+
+	/**
+	 * start (or resume) writing the response of a CGI process that has output more
+	 * Called back in the thread of the event loop
+	 * @param cgi
+	 */
+	public void cgiOutputReady(CGIProcess cgi) {
+		// the connection has been closed (and the handler may have been reused) in the meantime,
+		// or the handler is still writing and takes the output when outBuffer has been sent
+		if(cgi != this.cgi || state != State.RUNNING_CGI)
+			return;
+		SelectionKey key = timer.getKey();
+		outBuffer = eventLoop.getBufferPool().acquire();
+
+		if(cgi.getError() != null && !cgiHeaderSent) {
+			Util.DEBUG("CGI failed: " + cgi.getError());
+			this.cgi = null;
+			outputError(500, "Internal Server Error");
+			state = State.LAST_RESPONSE_READY;
+		} else {
+			if(!cgiHeaderSent) {
+				outputCGIHeader();
+				cgiHeaderSent = true;
+			}
+			state = State.RESPONSE_READY;
+			if(outputCGIOutput() == -1) {
+				state = State.LAST_RESPONSE_READY;
+			} else if(outBuffer.position() == 0) {
+				// nothing new (the callback of output that has been sent already)
+				waitForCGI(key);
+				return;
+			}
 		}
+
+		setTimeout(SelectHTTPServer.WRITE_TIMEOUT);
+		turnOn(key, SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * put the status line & headers of a CGI response into outBuffer
+	 */
+	private void outputCGIHeader() {
 		// send response and header
+		status = 200;
 		writeBytes("HTTP/1.1 200 OK\r\n");
 
-		// Date header
-		Date currentTime = new Date();
-		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss z");
-		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-		writeBytes("Date: " + sdf.format(currentTime) + "\r\n");
+		// Date header (formatted once per second)
+		writeBytes(HTTPDate.dateHeader());
 
 		// Server header
 		writeBytes("Server: " + SelectHTTPServer.SERVER_NAME + "\r\n");
@@ -556,44 +1012,134 @@ class SelectHTTPRequestHandler {
 		// Transfer-Encoding header
 		writeBytes("Transfer-Encoding: chunked\r\n");
 
+		// Connection header
+		outputConnectionHeader();
+
 		writeBytes("\r\n");
+	}
 
-		// Output from the CGI script
-		// here, we ignore the header output by the CGI program and treat it the same as data
-		StringBuilder cgiOut = new StringBuilder();
-		String line = r.readLine();
-		while (line != null) {
-			//Util.DEBUG(line);
-			int lineLen = line.length();
-			cgiOut.append(Integer.toHexString(lineLen + 1) + "\r\n");
-			cgiOut.append(line + "\n\r\n"); //\n is appended because readLine discarded it
-			line = r.readLine();
+	/**
+	 * put the chunks of the CGI output that are ready into outBuffer
+	 * @return -1 if the whole output has been put; 0 otherwise (more rounds of writes are needed)
+	 */
+	private int outputCGIOutput() {
+		while(outBuffer.hasRemaining()) {
+			if(cgiChunk == null) {
+				boolean finished = cgi.isFinished(); // read before poll(), so that no chunk can be missed
+				cgiChunk = cgi.poll();
+				if(cgiChunk == null) {
+					if(!finished)
+						return 0; // cgiOutputReady() is called when there is more
+					if(cgi.getError() != null) {
+						// the response is cut short, which the client can only tell from the closed connection
+						Util.DEBUG("CGI failed: " + cgi.getError());
+						keepAlive = false;
+					}
+					cgi = null;
+					return -1;
+				}
+			}
+			int n = Math.min(outBuffer.remaining(), cgiChunk.remaining());
+			outBuffer.put(cgiChunk.array(), cgiChunk.position(), n);
+			cgiChunk.position(cgiChunk.position() + n);
+			if(!cgiChunk.hasRemaining())
+				cgiChunk = null;
 		}
-		cgiOut.append("0\r\n\r\n");
-		fileInBytes = cgiOut.toString().getBytes();
+		return 0;
 	}
 
 	/**
 	 * return a header telling the client whether the service is available
+	 * Busy if fewer than 1/8 of the connection slots are free (i.e., acceptDisabled is positive,
+	 * and the acceptor pauses soon), or if the cpu usage is too high
+	 * The connection slot pressure and the cpu usage follow as a text body
 	 */
 	private void hbMonitor() throws IOException {
 		OperatingSystemMXBean osmxb = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
 		double cpu = osmxb.getSystemCpuLoad();
-		Util.DEBUG("load:" + cpu);
-		if(cpu < SelectHTTPServer.MAX_CPU_USAGE){
+		int acceptDisabled = SelectHTTPServer.acceptDisabled();
+		Util.DEBUG("load:" + cpu + ", acceptDisabled:" + acceptDisabled);
+		if(acceptDisabled <= 0 && cpu < SelectHTTPServer.MAX_CPU_USAGE){
+			status = 200;
 			writeBytes("HTTP/1.1 200 OK\r\n");
 		} else {
+			status = 503;
 			writeBytes("HTTP/1.1 503 Service Unavailable\r\n");
 		}
+		byte[] content = ("connections: " + SelectHTTPServer.openConnections.get() + "/" + SelectHTTPServer.maxConnections
+				+ ", accept disabled: " + acceptDisabled + ", accepting: " + (SelectHTTPServer.acceptPaused ? "paused" : "yes")
+				+ ", cpu: " + String.format("%.2f", cpu) + "\n").getBytes();
+		writeBytes("Content-Type: text/plain\r\n");
+		writeBytes("Content-Length: " + content.length + "\r\n");
+		outputConnectionHeader();
+		writeBytes("\r\n");
+		writeBytes(content);
+	}
+
+	/**
+	 * put the metrics of the server in the Prometheus text format into outBuffer
+	 * The metrics may not fit in outBuffer, so they are sent like a cached file (see outputResponseBody)
+	 * @return -1 if all done; 0 if more rounds are needed
+	 */
+	private int outputMetrics() throws IOException {
+		fileInBytes = Metrics.scrape(SelectHTTPServer.cache).toString().getBytes();
+		fileInBytesIdx = 0;
+		status = 200;
+		writeBytes("HTTP/1.1 200 OK\r\n");
+		writeBytes(HTTPDate.dateHeader());
+		writeBytes("Server: " + SelectHTTPServer.SERVER_NAME + "\r\n");
+		writeBytes("Content-Type: " + Metrics.CONTENT_TYPE + "\r\n");
+		writeBytes("Content-Length: " + fileInBytes.length + "\r\n");
+		outputConnectionHeader();
+		writeBytes("\r\n");
+		return outputResponseBody();
 	}
 
 	/**
 	 * Put error message to the outResponse string buffer
+	 * The response has no body, so that the connection can be kept alive
+	 * (except for 400, where the rest of the input cannot be trusted, and 413, where the body is not read)
 	 * @param errCode status code
 	 * @param errMsg error message
 	 */
 	private void outputError(int errCode, String errMsg) {
+		if(errCode == 400 || errCode == 413)
+			keepAlive = false;
+		status = errCode;
 		writeBytes("HTTP/1.1 " + errCode + " " + errMsg + "\r\n");
+		writeBytes("Server: " + SelectHTTPServer.SERVER_NAME + "\r\n");
+		writeBytes("Content-Length: 0\r\n");
+		outputConnectionHeader();
+		writeBytes("\r\n");
+	}
+
+	/**
+	 * Put the Connection header to outBuffer
+	 * The connection is closed if the client asks for it, or if the connection
+	 * has served MaxKeepAliveRequests requests
+	 */
+	private void outputConnectionHeader() {
+		if(SelectHTTPServer.maxKeepAliveRequests > 0 && numRequests >= SelectHTTPServer.maxKeepAliveRequests)
+			keepAlive = false;
+		if(keepAlive) {
+			writeBytes("Connection: keep-alive\r\n");
+			writeBytes("Keep-Alive: timeout=" + SelectHTTPServer.keepAliveTimeout / 1000 + "\r\n");
+		} else {
+			writeBytes("Connection: close\r\n");
+		}
+	}
+
+	/**
+	 * Write bytes to outBuffer
+	 * @param bytes
+	 */
+	private void writeBytes(byte[] bytes) {
+		try{
+			outBuffer.put(bytes);
+		} catch (BufferOverflowException e) {
+			e.printStackTrace();
+			Util.DEBUG("outBuffer overflow happens! Some data is lost!");
+		}
 	}
 
 	/**
@@ -622,16 +1168,64 @@ class SelectHTTPRequestHandler {
 		key.interestOps(nextState);
 	}
 
-	public void testAndKill(long currentTime, SelectionKey key){
-		if(currentTime >= createTime + SelectHTTPServer.TIME_MAXIMUM){
-			try{
-				key.channel().close();
-				key.cancel();
-			} catch(IOException e){
-				e.printStackTrace();
-				System.out.println("kill socket fail!");
-				return;
-			}	
+	/**
+	 * whether the connection is waiting for the next request with nothing buffered
+	 */
+	public boolean isIdle(){
+		return state == State.READING_HEADER && parser.isEmpty() && (inBuffer == null || inBuffer.position() == 0);
+	}
+
+	/**
+	 * (re)schedule the timeout of the connection
+	 * @param timeout in millisec from now
+	 */
+	private void setTimeout(long timeout){
+		eventLoop.getTimingWheel().schedule(timer, System.currentTimeMillis() + timeout);
+	}
+
+	/* give the buffers back to the buffer pool */
+	private void releaseInBuffer() {
+		if(inBuffer != null) {
+			eventLoop.getBufferPool().release(inBuffer);
+			inBuffer = null;
+		}
+	}
+
+	private void releaseOutBuffer() {
+		if(outBuffer != null) {
+			eventLoop.getBufferPool().release(outBuffer);
+			outBuffer = null;
+		}
+	}
+
+	/**
+	 * close the connection, release everything it holds and give the handler back to
+	 * the event loop for the next connection
+	 * @param key
+	 */
+	public void close(SelectionKey key){
+		if(closed)
+			return;
+		closed = true;
+		// kill the CGI process if it is still running, its result will be ignored
+		if(cgi != null) {
+			cgi.cancel();
+			cgi = null;
+		}
+		Metrics.connectionClosed();
+		eventLoop.getTimingWheel().cancel(timer);
+		timer.key = null;
+		release();
+		cleanup();
+		releaseInBuffer();
+		key.attach(null);
+		key.cancel();
+		try{
+			key.channel().close();
+		} catch(IOException e){
+			e.printStackTrace();
+			System.out.println("kill socket fail!");
 		}
+		eventLoop.recycle(this);
 	}
 }
\ No newline at end of file
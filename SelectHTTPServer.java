@@ -1,11 +1,13 @@
 
 /**
- ** A per-thread, sequential processing handler server
+ ** A select server: one acceptor thread plus N worker event loops
  **/
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.*;
 import java.nio.channels.*;
 import org.apache.commons.cli.*;
@@ -23,21 +25,73 @@ class SelectHTTPServer {
 	/* the default virtual host if no Host header is specified */
 	public static VirtualHost defaultVHost;
 
-	public static HashMap<File, byte[]> cache; // cache, where key is the file and value is the content
-	public static int cacheCurrentSize = 0;
-	public static int cacheMaxSize = 0;
+	public static FileCache cache; // cache, where key is the file and value is the content (null if no CacheSize)
 
-	// maximum cpu usage (for returning 503 or 200 in heartbeating monitor)
-	public static final double MAX_CPU_USAGE = 0.8;
+	// the resolved static requests (null if OpenFileCache off), and their number and valid time (in millisec) by default
+	// based on OpenFileCache <max entries> [<valid seconds>] in the configuration file
+	public static final int OPEN_FILE_CACHE_MAX = 1000;
+	public static final long OPEN_FILE_CACHE_VALID = 5000;
+	public static OpenFileCache openFileCache = new OpenFileCache(OPEN_FILE_CACHE_MAX, OPEN_FILE_CACHE_VALID);
 
-	// maximum time (in millisec) for a connection to finish (otherwise 
-	// connection over TIME_MAXIMUM will be killed [in TIME_BUFFER millisec])
-	public static final long TIME_MAXIMUM = 3000;
-	public static final long TIME_BUFFER = 1000;
+	// maximum size (in bytes) of a request body, larger requests get 413, 0 means unlimited (default 1 GB)
+	// based on LimitRequestBody <bytes> in the configuration file
+	public static long limitRequestBody = 1L << 30;
 
-	public static Selector selector; // the selector for the server
+	// maximum cpu usage (for returning 503 or 200 in heartbeating monitor)
+	public static final double MAX_CPU_USAGE = 0.8;
 
-	public static boolean stop = false; // whether to check there is still open channels (set by ShutdownCommand)
+	// maximum time (in millisec) to receive a whole request, measured from the accept
+	// (or from the first byte of the request on a persistent connection)
+	public static final long HEADER_TIMEOUT = 3000;
+	// maximum time (in millisec) that a response can make no progress in writing
+	// (so that long downloads are not killed as long as the client keeps reading)
+	public static final long WRITE_TIMEOUT = 3000;
+	// maximum time (in millisec) that a CGI script can run without any output
+	public static final long CGI_TIMEOUT = 30000;
+	// the timing wheel of every event loop: TIMER_TICK millisec per slot,
+	// i.e., a turn of the wheel covers TIMER_TICK * TIMER_WHEEL_SIZE millisec
+	public static final long TIMER_TICK = 100;
+	public static final int TIMER_WHEEL_SIZE = 512;
+
+	// the buffer pool of every event loop allocates BUFFERS_PER_SLAB buffers at a time
+	public static final int BUFFERS_PER_SLAB = 64;
+	// maximum number of closed-connection handlers kept by every event loop for reuse
+	public static final int HANDLER_POOL_SIZE = 1024;
+
+	// how long (in millisec) an idle persistent connection is kept open (default 5 sec)
+	// based on KeepAliveTimeout <seconds> in the configuration file
+	public static long keepAliveTimeout = 5000;
+	// maximum number of requests served on a persistent connection, 0 means unlimited (default 100)
+	// based on MaxKeepAliveRequests <number of requests> in the configuration file
+	public static int maxKeepAliveRequests = 100;
+
+	public static Selector selector; // the selector of the acceptor (i.e., the main thread)
+
+	// maximum number of open connections (default 1024), the next connections wait in the backlog
+	// of the listening socket until some are closed
+	// based on MaxConnections <number of connections> in the configuration file
+	public static int maxConnections = 1024;
+	// maximum number of connections accepted per accept event
+	public static final int ACCEPT_BATCH = 64;
+	// number of open connections: a slot is taken by the acceptor and given back by the event loop
+	// when the connection is closed
+	public static final AtomicInteger openConnections = new AtomicInteger();
+	// whether OP_ACCEPT has been removed from the interest of the server socket channel, because
+	// every slot was taken (see acceptDisabled)
+	public static volatile boolean acceptPaused = false;
+
+	// number of worker event loops (default: number of cores)
+	// based on EventLoops <number of event loops> in the configuration file
+	public static int numEventLoops = Runtime.getRuntime().availableProcessors();
+	public static EventLoop[] eventLoops;
+	public static Thread[] eventLoopThreads;
+	private static int nextEventLoop = 0; // round-robin index for handing over connections
+
+	// the offload executor where the CGI processes run, so that they never block an event loop
+	// (one thread per running process, plus one while its stdin is written)
+	public static ExecutorService cgiExecutor;
+
+	public static volatile boolean stop = false; // whether to check there is still open channels (set by ShutdownCommand)
 
 	public static void main(String args[]) throws Exception {
 
@@ -47,10 +101,22 @@ class SelectHTTPServer {
 		// read config
 		readConfig();
 
+		// keep the caches consistent with the document roots
+		if (cache != null || openFileCache != null)
+			CacheWatcher.start(cache, openFileCache, virtualHosts.values());
+
+		cgiExecutor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "CGI");
+			t.setDaemon(true);
+			return t;
+		});
+
 		// create server socket channel
 		ServerSocketChannel sch = openServerSocketChannel(serverPort);
 
 		System.out.println("server listening at port: " + serverPort);
+		System.out.println("event loops: " + numEventLoops);
+		System.out.println("max connections: " + maxConnections);
 
 		// start command thread
 		CommandThread ct = new CommandThread();
@@ -63,34 +129,25 @@ class SelectHTTPServer {
 			// register server socket (no need to use attachment)
 			sch.register(selector, SelectionKey.OP_ACCEPT);
 
+			// create and start the worker event loops
+			eventLoops = new EventLoop[numEventLoops];
+			eventLoopThreads = new Thread[numEventLoops];
+			for (int i = 0; i < numEventLoops; i++) {
+				eventLoops[i] = new EventLoop(i);
+				eventLoopThreads[i] = new Thread(eventLoops[i], "EventLoop-" + i);
+				eventLoopThreads[i].start();
+			}
+
 		} catch (IOException e) {
 			Util.panic(1, "Cannot open selector!");
 		}
 
-		// event loop
+		// acceptor loop: accepts connections and hands them over to the event loops
 		while (true) {
 
-			/*
-			 * try {
-			 * 
-			 * // take a ready connection from the accepted queue Socket connectionSocket =
-			 * listenSocket.accept(); System.out.println("\nReceive request from " +
-			 * connectionSocket);
-			 * 
-			 * // process a request Thread thread = new Thread(new
-			 * SelectHTTPRequestHandler(connectionSocket));
-			 * 
-			 * thread.start();
-			 * 
-			 * } catch (IOException e) {
-			 * System.out.println("cannot handle IO for connection socket"); }
-			 */
-
 			try {
-				// block to wait for events
-				// block for at most TIME_BUFFER millisec, 
-				// so that connection over TIME_MAXIMUM will be killed in TIME_BUFFER
-				selector.select(TIME_BUFFER);
+				// block to wait for accept events or commands
+				selector.select();
 			} catch (IOException e) {
 				e.printStackTrace();
 				Util.panic(2, "Selector IOException generated!");
@@ -112,32 +169,19 @@ class SelectHTTPServer {
 
 				try {
 					if (key.isAcceptable()) {
-						// a new connection is ready to be accepted
+						// new connections are ready to be accepted
 						handleAccept(key);
 					} // end of isAcceptable
-
-					if (key.isReadable()) {
-						handleRead(key);
-					} // end of isReadable
-
-					if (key.isWritable()) {
-						handleWrite(key);
-					} // end of if isWritable
-
 				} catch (IOException e) {
-
-					if (key != null) {
-						key.cancel();
-						if (key.channel() != null)
-							try {
-								key.channel().close();
-							} catch (IOException closeex) {
-							}
-					}
-
+					e.printStackTrace();
 				}
 			}
 
+			// accept again once enough connections have been closed (the event loops wake the acceptor up)
+			if (acceptPaused && canResumeAccept()) {
+				resumeAccept(sch);
+			}
+
 			// deal with command queue
 			synchronized (ct.commandQ) {
 				while (!ct.commandQ.isEmpty()) {
@@ -146,78 +190,100 @@ class SelectHTTPServer {
 				}
 			}
 
-			Iterator<SelectionKey> iter = SelectHTTPServer.selector.keys().iterator();
-			long currentTime = System.currentTimeMillis();
-			while (iter.hasNext()) {
-				SelectionKey key = iter.next();
-				SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
-				if(handler != null){
-					handler.testAndKill(currentTime, key);
-				}
-			}
-
 			if (stop) {
-				// check whether there are still (not closed) keys, if not, close selector and
-				// exit the event loop
-				Iterator<SelectionKey> it = SelectHTTPServer.selector.keys().iterator();
-				boolean allClosed = true;
-				while (it.hasNext()) {
-					SelectionKey key = it.next();
-					if (key.isValid()) {
-						allClosed = false;
-					}
+				// the server socket channel has been closed, let every event loop
+				// finish its current connections and wait for them to exit
+				for (EventLoop loop : eventLoops) {
+					loop.shutdown();
 				}
-				if (allClosed) {
-					selector.close();
-					System.out.println("Server shut down!");
-					return;
+				for (Thread t : eventLoopThreads) {
+					t.join();
 				}
+				selector.close();
+				System.out.println("Server shut down!");
+				return;
 			}
 
-		} // end of event loop
+		} // end of acceptor loop
 	}
 
+	/**
+	 * Accept the ready connections, up to ACCEPT_BATCH per event (rather than one per select)
+	 * When every connection slot is taken, OP_ACCEPT is removed, so that the acceptor is not
+	 * woken up for connections it cannot take
+	 * @param key
+	 */
 	public static void handleAccept(SelectionKey key) throws IOException {
 
 		ServerSocketChannel server = (ServerSocketChannel) key.channel();
 
-		// extract the ready connection
-		SocketChannel client = server.accept();
-		Util.DEBUG("handleAccept: Accepted connection from " + client);
-
-		// configure the connection to be non-blocking
-		client.configureBlocking(false);
-
-		// register the new connection with interests
-		SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ);
-
-		// save handler
-		clientKey.attach(new SelectHTTPRequestHandler());
-
-	}
+		for (int i = 0; i < ACCEPT_BATCH; i++) {
 
-	public static void handleRead(SelectionKey key) throws IOException {
+			// only the acceptor takes slots, so the slot cannot be taken meanwhile
+			if (openConnections.get() >= maxConnections) {
+				pauseAccept(key);
+				return;
+			}
 
-		// a connection is ready to be read
-		Util.DEBUG("[>]handleRead");
+			// extract the ready connection
+			SocketChannel client = server.accept();
+			if (client == null)
+				return;
+			openConnections.incrementAndGet();
+			Util.DEBUG("handleAccept: Accepted connection from " + client);
 
-		SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
-		handler.handleRead(key);
+			// configure the connection to be non-blocking
+			client.configureBlocking(false);
 
-		Util.DEBUG("[-]handleRead");
+			// hand the connection over to a worker event loop (round robin)
+			eventLoops[nextEventLoop].register(client);
+			nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+		}
 
 	}
 
-	public static void handleWrite(SelectionKey key) throws IOException {
+	/**
+	 * Like ngx_accept_disabled in nginx: maxConnections / 8 - number of free slots, i.e., positive
+	 * when fewer than 1/8 of the slots are free
+	 */
+	public static int acceptDisabled() {
+		return maxConnections / 8 - (maxConnections - openConnections.get());
+	}
 
-		// a connection is ready to be written
-		Util.DEBUG("[>]handleWrite");
+	/**
+	 * whether accepting can resume: 1/8 of the slots (at least one) must be free again, so that
+	 * the acceptor is not paused and resumed for every connection closed under a full load
+	 */
+	private static boolean canResumeAccept() {
+		return acceptDisabled() <= 0 && openConnections.get() < maxConnections;
+	}
 
-		SelectHTTPRequestHandler handler = (SelectHTTPRequestHandler) key.attachment();
-		handler.handleWrite(key);
+	private static void pauseAccept(SelectionKey key) {
+		key.interestOps(0);
+		acceptPaused = true;
+		Util.DEBUG("Accept paused: " + openConnections.get() + " connections open");
+		// in case the connections have been closed before acceptPaused was set
+		if (canResumeAccept())
+			selector.wakeup();
+	}
 
-		Util.DEBUG("[-]handleWrite");
+	private static void resumeAccept(ServerSocketChannel sch) {
+		acceptPaused = false;
+		SelectionKey key = sch.keyFor(selector);
+		// the server socket channel may have been closed by shutdown
+		if (key != null && key.isValid())
+			key.interestOps(SelectionKey.OP_ACCEPT);
+		Util.DEBUG("Accept resumed: " + openConnections.get() + " connections open");
+	}
 
+	/**
+	 * Give the slot of a closed connection back, and wake the acceptor up if it is paused and can resume
+	 * Called by the event loops
+	 */
+	public static void releaseConnection() {
+		openConnections.decrementAndGet();
+		if (acceptPaused && canResumeAccept())
+			selector.wakeup();
 	}
 
 	/**
@@ -293,8 +359,30 @@ class SelectHTTPServer {
 				if (st.contains("Listen") && parsingVH == false) {
 					serverPort = Integer.parseInt(st.substring(st.indexOf("Listen") + 7).trim());
 				} else if (st.contains("CacheSize") && parsingVH == false) {
-					cacheMaxSize = 1024 * Integer.parseInt(st.substring(st.indexOf("CacheSize") + 10).trim());
-					cache = new HashMap<>();
+					cache = new FileCache(1024L * Long.parseLong(st.substring(st.indexOf("CacheSize") + 10).trim()));
+				} else if (st.contains("OpenFileCache") && parsingVH == false) {
+					String[] args = st.substring(st.indexOf("OpenFileCache") + 14).trim().split("\\s+");
+					try {
+						if (args.length == 1 && args[0].equals("off"))
+							openFileCache = null;
+						else if (args.length > 2 || Integer.parseInt(args[0]) < 1)
+							throw new IllegalArgumentException();
+						else
+							openFileCache = new OpenFileCache(Integer.parseInt(args[0]),
+									args.length == 2 ? 1000 * Long.parseLong(args[1]) : OPEN_FILE_CACHE_VALID);
+					} catch (IllegalArgumentException e) {
+						Util.panic(7, "OpenFileCache should be <max entries> [<valid seconds>] or off!");
+					}
+				} else if (st.contains("LimitRequestBody") && parsingVH == false) {
+					limitRequestBody = Long.parseLong(st.substring(st.indexOf("LimitRequestBody") + 17).trim());
+				} else if (st.contains("MaxConnections") && parsingVH == false) {
+					maxConnections = Integer.parseInt(st.substring(st.indexOf("MaxConnections") + 15).trim());
+				} else if (st.contains("EventLoops") && parsingVH == false) {
+					numEventLoops = Integer.parseInt(st.substring(st.indexOf("EventLoops") + 11).trim());
+				} else if (st.contains("KeepAliveTimeout") && parsingVH == false) {
+					keepAliveTimeout = 1000L * Integer.parseInt(st.substring(st.indexOf("KeepAliveTimeout") + 17).trim());
+				} else if (st.contains("MaxKeepAliveRequests") && parsingVH == false) {
+					maxKeepAliveRequests = Integer.parseInt(st.substring(st.indexOf("MaxKeepAliveRequests") + 21).trim());
 				} else if (st.contains("VirtualHost") && parsingVH == false) { // note that *:6789 is ignored
 					vh = new VirtualHost();
 					parsingVH = true;
@@ -315,6 +403,33 @@ class SelectHTTPServer {
 					} else if (st.contains("ServerName")) {
 						int idx = st.indexOf("ServerName") + 11;
 						vh.setServerName(st.substring(idx).trim());
+					} else if (st.contains("FastCGIPass")) {
+						int idx = st.indexOf("FastCGIPass") + 12;
+						String fastCGIPass = st.substring(idx).trim();
+						try {
+							FastCGIClient.parseAddress(fastCGIPass);
+						} catch (IllegalArgumentException e) {
+							Util.panic(6, "cannot parse FastCGIPass " + fastCGIPass + "!");
+						}
+						vh.setFastCGIPass(fastCGIPass);
+					} else if (st.contains("CacheControl")) {
+						vh.getCachePolicy().setCacheControl(st.substring(st.indexOf("CacheControl") + 13).trim());
+					} else if (st.contains("ExpiresDefault")) {
+						String seconds = st.substring(st.indexOf("ExpiresDefault") + 15).trim();
+						try {
+							vh.getCachePolicy().setExpiresDefault(Long.parseLong(seconds));
+						} catch (IllegalArgumentException e) {
+							Util.panic(7, "cannot parse ExpiresDefault " + seconds + "!");
+						}
+					} else if (st.contains("ExpiresByType")) {
+						String[] args = st.substring(st.indexOf("ExpiresByType") + 14).trim().split("\\s+");
+						try {
+							if (args.length != 2)
+								throw new IllegalArgumentException();
+							vh.getCachePolicy().setExpiresByType(args[0], Long.parseLong(args[1]));
+						} catch (IllegalArgumentException e) {
+							Util.panic(7, "ExpiresByType should be <media type> <seconds>!");
+						}
 					}
 				}
 			}
@@ -325,6 +440,12 @@ class SelectHTTPServer {
 		} catch (NumberFormatException e) {
 			Util.panic(4, "cannot parse listen port!");
 		}
+		if (numEventLoops < 1) {
+			Util.panic(5, "EventLoops should be at least 1!");
+		}
+		if (maxConnections < 1) {
+			Util.panic(5, "MaxConnections should be at least 1!");
+		}
 		Util.DEBUG(virtualHosts.toString());
 	}
 
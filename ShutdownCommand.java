@@ -6,9 +6,9 @@ import java.nio.channels.*;
 /**
  * The command of shutting down the server
  * The command will disable ServerSocketChannel 
- * Every time the event loop handles some events, at the end, if "stop" is set, 
- * it will check wither SelectHTTPServer.selector.keys() still has open channles, 
- * if not, close the selector.
+ * Once "stop" is set, the acceptor asks every worker event loop to shut down.
+ * Every time an event loop handles some events, at the end, it will check whether
+ * its selector still has open channels, if not, close the selector.
  * Therefore, after running this command, the server will shut down shortly
  */
 public class ShutdownCommand extends Command{
@@ -4,14 +4,20 @@
  */
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 
 class ThreadHTTPRequestHandler implements Runnable {
 
 	Socket connSocket;
-	BufferedReader inFromClient;
+	InputStream inFromClient;
+	// the bytes read from the client: the request line & headers are fed to parser,
+	// and the rest (i.e., the beginning of the body of a POST request) is left in inBuffer
+	byte[] inBytes = new byte[HTTPRequestParser.MAX_HEADER_SIZE];
+	ByteBuffer inBuffer = ByteBuffer.wrap(inBytes, 0, 0);
+	HTTPRequestParser parser = new HTTPRequestParser();
 	DataOutputStream outToClient;
 
 	String filePath; // root dir + URL
@@ -31,10 +37,23 @@ class ThreadHTTPRequestHandler implements Runnable {
 	String query_string; // the string after ? if any
 
 	boolean usingHeartbeatingMonitor = false; // whether or not GET /load
+	boolean usingMetrics = false; // whether or not GET /metrics
 
-	Date ifModifiedSince; // if the header is present in the request
+	int status = 0; // the status code of the response, 0 until its status line is written
 
-	int contentLength = -1; // for POST request
+	long ifModifiedSince = -1; // in millisec, if the header is present in the request
+
+	long lastModified = -1; // of the file, in millisec
+	String etag; // of the file (see ETag)
+
+	OpenFileCache.Entry openFile; // the resolved file (see OpenFileCache)
+	FileCache.Entry cacheEntry; // the cached file if any
+
+	long bytesTransferred = 0; // sent by transferTo to the channel of the socket, which outToClient does not count
+	ByteBuffer transferBuffer; // the blocks that transferTo could not send (see transferFile), allocated on demand
+	public static final int TRANSFER_BLOCK_SIZE = 65536;
+
+	long contentLength = -1; // for POST request
 
 	private final int thread_id; // id for this thread
 
@@ -47,6 +66,9 @@ class ThreadHTTPRequestHandler implements Runnable {
 		connSocket = null;
 		inFromClient = null;
 		outToClient = null;
+		inBuffer.position(0);
+		inBuffer.limit(0);
+		parser.reset();
 		filePath = null;
 		file = null;
 		myVH = null;
@@ -54,7 +76,14 @@ class ThreadHTTPRequestHandler implements Runnable {
 		userAgent = UNKNOWN_USER;
 		query_string = null;
 		usingHeartbeatingMonitor = false;
-		ifModifiedSince = null;
+		usingMetrics = false;
+		status = 0;
+		ifModifiedSince = -1;
+		lastModified = -1;
+		etag = null;
+		openFile = null;
+		cacheEntry = null;
+		bytesTransferred = 0;
 		contentLength = -1;
 	}
 
@@ -65,62 +94,94 @@ class ThreadHTTPRequestHandler implements Runnable {
 			// clean up all the object fields
 			cleanup();
 
-			while (connSocket == null) {
-				synchronized (ThreadHTTPServer.connSockQ) {
-					if (!ThreadHTTPServer.connSockQ.isEmpty()) {
-						// get the first socket
-						connSocket = ThreadHTTPServer.connSockQ.remove(0);
-						try{
-							inFromClient = new BufferedReader(new InputStreamReader(connSocket.getInputStream()));
-							outToClient = new DataOutputStream(connSocket.getOutputStream());
-						} catch (IOException e) {
-							Util.DEBUG("Inernal exception generated!");
-							e.printStackTrace();
-							cleanup();
-						}
-						Util.DEBUG("Thread " + thread_id + " processing request");
-					} else {
-						try{
-							ThreadHTTPServer.connSockQ.wait();
-						} catch(Exception e){
-							e.printStackTrace();
-						}
-					}
+			Socket socket;
+			try {
+				// get the first socket, or accept one with HandOff accept
+				if (ThreadHTTPServer.connSockQ != null) {
+					socket = ThreadHTTPServer.connSockQ.take();
+				} else {
+					socket = ThreadHTTPServer.listenSocket.accept();
+					Util.DEBUG("\nReceive request from " + socket);
 				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				continue;
+			} catch (IOException e) {
+				System.out.println("cannot handle IO for connection socket");
+				continue;
 			}
+			Util.DEBUG("Thread " + thread_id + " processing request");
 
+			ThreadHTTPServer.busyThreads.incrementAndGet();
 			try {
-				// doing all the setups based on request headers
-				if (parseRequest() == -1) {
-					connSocket.close();
-					continue;
-				}
+				serve(socket);
+			} finally {
+				ThreadHTTPServer.busyThreads.decrementAndGet();
+			}
+		}
+	}
 
-				// using heatbeating monitor
-				if (usingHeartbeatingMonitor) {
-					hbMonitor();
-					connSocket.close();
-					continue;
-				}
+	/**
+	 * Serve the request of a connection and close it, and record it in the metrics
+	 * Called by the threads of the pool, or by a virtual thread per connection with ExecutionModel virtual
+	 * @param socket
+	 */
+	public void serve(Socket socket) {
+		long start = System.nanoTime();
+		Metrics.connectionOpened();
+		try {
+			serveRequest(socket);
+		} finally {
+			if (status != 0)
+				Metrics.request(myVH != null ? myVH.getServerName() : null, status, (outToClient != null ? outToClient.size() : 0) + bytesTransferred,
+						System.nanoTime() - start);
+			Metrics.connectionClosed();
+		}
+	}
 
-				// Send back the file (headers and data).
-				// The function outputFile() does all the validity checking and may use CGI if
-				// the file is an executable and may use cache if it is a static file.
-				outputFile();
+	private void serveRequest(Socket socket) {
+		connSocket = socket;
+
+		try {
+			inFromClient = connSocket.getInputStream();
+			outToClient = new DataOutputStream(connSocket.getOutputStream());
+
+			// doing all the setups based on request headers
+			if (parseRequest() == -1) {
 				connSocket.close();
-				continue;
+				return;
+			}
 
-			} catch (Exception e) {
-				Util.DEBUG("Inernal exception generated!");
-				outputError(500, "Internal Server Error");
-				e.printStackTrace();
+			// using heatbeating monitor
+			if (usingHeartbeatingMonitor) {
+				hbMonitor();
+				connSocket.close();
+				return;
 			}
 
-			try {
+			if (usingMetrics) {
+				outputMetrics();
 				connSocket.close();
-			} catch (Exception e) {
-				Util.DEBUG("Thread_end exception generated!");
+				return;
 			}
+
+			// Send back the file (headers and data).
+			// The function outputFile() does all the validity checking and may use CGI if
+			// the file is an executable and may use cache if it is a static file.
+			outputFile();
+			connSocket.close();
+			return;
+
+		} catch (Exception e) {
+			Util.DEBUG("Inernal exception generated!");
+			outputError(500, "Internal Server Error");
+			e.printStackTrace();
+		}
+
+		try {
+			connSocket.close();
+		} catch (Exception e) {
+			Util.DEBUG("Thread_end exception generated!");
 		}
 	}
 
@@ -131,26 +192,27 @@ class ThreadHTTPRequestHandler implements Runnable {
 	 * @throws IOException
 	 */
 	int parseRequest() throws IOException {
-		String requestMessageLine = inFromClient.readLine();
-		Util.DEBUG("Request: " + requestMessageLine);
-		// If EOF is reached
-		if (requestMessageLine == null) {
-			outputError(400, "Bad Request");
-			return -1;
+		// read until the request line & headers have been parsed
+		int result;
+		while ((result = parser.parse(inBuffer)) == HTTPRequestParser.INCOMPLETE) {
+			// every byte in inBuffer has been consumed
+			int readBytes = inFromClient.read(inBytes);
+			if (readBytes == -1)
+				break;
+			inBuffer.position(0);
+			inBuffer.limit(readBytes);
 		}
-
-		// process the request
-		String[] request = requestMessageLine.split("\\s");
-
-		if (request.length < 2) {
+		Util.DEBUG("Request: " + parser);
+		// If EOF is reached, or the request is malformed
+		if (result != HTTPRequestParser.COMPLETE) {
 			outputError(400, "Bad Request");
 			return -1;
 		}
 
 		// parse request type
-		if (request[0].trim().toUpperCase().equals("GET")) {
+		if (parser.getMethod() == HTTPRequestParser.GET) {
 			requestType = GET_REQUEST;
-		} else if (request[0].trim().toUpperCase().equals("POST")) {
+		} else if (parser.getMethod() == HTTPRequestParser.POST) {
 			requestType = POST_REQUEST;
 		} else {
 			outputError(400, "Bad Request");
@@ -158,75 +220,54 @@ class ThreadHTTPRequestHandler implements Runnable {
 		}
 
 		// parse URL to retrieve file name
-		String urlName = request[1].trim();
+		String urlName = parser.getPath();
 		// if there exists any query string for CGI
-		if (urlName.contains("?") && requestType == GET_REQUEST) {
-			int q_index = urlName.indexOf("?");
-			query_string = urlName.substring(q_index + 1).trim();
-			urlName = urlName.substring(0, q_index).trim();
-		}
+		query_string = parser.getQuery();
 
 		if (urlName.startsWith("/") == true)
 			urlName = urlName.substring(1);
 
-		// read header
-		String line = inFromClient.readLine();
-		while (line != null && !line.equals("")) {
-			int idx = line.indexOf(":");
-			if (idx == -1) {
-				Util.DEBUG(line);
-				outputError(400, "Bad Request");
-				return -1;
-			}
-			String header = line.substring(0, idx).trim();
-			String content = line.substring(idx + 1).trim();
-			Util.DEBUG("<" + header + ":" + content + ">");
-
-			// Host header
-			if (header.toLowerCase().equals("host")) {
-				String host = content;
-				// ignore port number if any
-				if (host.contains(":"))
-					host = content.substring(0, content.indexOf(":")).trim();
-				// search the host in the HashMap
-				if (ThreadHTTPServer.virtualHosts.containsKey(host)) {
-					VirtualHost vh = ThreadHTTPServer.virtualHosts.get(host);
-					myVH = vh;
-					String docRoot = vh.getDocRoot().trim();
-					if (docRoot.endsWith("/")) {
-						filePath = docRoot + urlName;
-					} else {
-						filePath = docRoot + "/" + urlName;
-					}
-				} else {
-					// use the default host
-				}
-			}
-			// User-Agent header
-			else if (header.toLowerCase().equals("user-agent")) {
-				if (content.toLowerCase().contains("iphone") || content.toLowerCase().contains("phone")) {
-					userAgent = PHONE_USER;
-				} else {
-					userAgent = PC_USER;
-				}
+		// Host header
+		String host = parser.getHost();
+		// search the host in the HashMap
+		if (host != null && ThreadHTTPServer.virtualHosts.containsKey(host)) {
+			VirtualHost vh = ThreadHTTPServer.virtualHosts.get(host);
+			myVH = vh;
+			String docRoot = vh.getDocRoot().trim();
+			if (docRoot.endsWith("/")) {
+				filePath = docRoot + urlName;
+			} else {
+				filePath = docRoot + "/" + urlName;
 			}
-			// Content-Length header
-			else if (header.toLowerCase().equals("content-length")) {
-				contentLength = Integer.parseInt(content);
+		} else {
+			// use the default host
+		}
+
+		// User-Agent header
+		if (parser.hasUserAgent()) {
+			if (parser.isPhoneUserAgent()) {
+				userAgent = PHONE_USER;
+			} else {
+				userAgent = PC_USER;
 			}
-			// If-Modified-Since header
-			else if (header.toLowerCase().equals("if-modified-since")) {
-				SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss z");
-				sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-				try {
-					ifModifiedSince = sdf.parse(content);
-				} catch (ParseException e) {
-					outputError(400, "Bad Request");
-					return -1;
-				}
-				Util.DEBUG("ifModifiedSince:" + ifModifiedSince.toString());
+		}
+
+		// Content-Length header
+		contentLength = parser.getContentLength();
+		if (ThreadHTTPServer.limitRequestBody > 0 && contentLength > ThreadHTTPServer.limitRequestBody) {
+			Util.DEBUG("request body of " + contentLength + " bytes is over LimitRequestBody");
+			outputError(413, "Payload Too Large");
+			return -1;
+		}
+
+		// If-Modified-Since header
+		if (parser.hasIfModifiedSince()) {
+			ifModifiedSince = parser.getIfModifiedSince();
+			if (ifModifiedSince == -1) {
+				outputError(400, "Bad Request");
+				return -1;
 			}
-			line = inFromClient.readLine();
+			Util.DEBUG("ifModifiedSince:" + HTTPDate.format(ifModifiedSince));
 		}
 
 		// If no Host header has been found
@@ -245,6 +286,11 @@ class ThreadHTTPRequestHandler implements Runnable {
 			usingHeartbeatingMonitor = true;
 		}
 
+		// set metrics
+		if (urlName.equals("metrics")) {
+			usingMetrics = true;
+		}
+
 		return 0;
 	}
 
@@ -258,51 +304,28 @@ class ThreadHTTPRequestHandler implements Runnable {
 	 */
 	private int outputFile() throws IOException {
 
-		file = new File(filePath);
-
-		// use index.html or index_m.html if file is a directory
-		if (file.isDirectory()) {
-			if (userAgent == PC_USER || userAgent == UNKNOWN_USER) {
-				file = new File(file.getCanonicalPath() + "/index.html");
-			} else if (userAgent == PHONE_USER) {
-				String fileDir = file.getCanonicalPath();
-				file = new File(fileDir + "/index_m.html");
-				if (!file.exists()) {
-					file = new File(fileDir + "/index.html");
-				}
-			}
-		}
+		// resolve the file (from OpenFileCache if it is set)
+		openFile = OpenFileCache.resolve(ThreadHTTPServer.openFileCache, filePath, myVH.getDocRoot(), userAgent == PHONE_USER);
+		file = openFile.getFile();
 
 		// the file must be contained in the root directory
-		File rootDir = new File(myVH.getDocRoot());
-		if (!file.getCanonicalPath().startsWith(rootDir.getCanonicalPath())) {
-			Util.DEBUG(file.getCanonicalPath() + " is out of root directory!");
+		if (openFile.getKind() == OpenFileCache.FORBIDDEN) {
+			Util.DEBUG(openFile.getCanonicalPath() + " is out of root directory!");
 			outputError(403, "Forbidden");
 			return -1;
 		}
 
 		// test whether the file exists
-		if (!file.isFile()) {
-			Util.DEBUG(file.getCanonicalPath() + " does not exist!");
+		if (openFile.getKind() == OpenFileCache.NOT_FOUND) {
+			Util.DEBUG(openFile.getCanonicalPath() + " does not exist!");
 			outputError(404, "Not Found");
 			return -1;
 		}
 
-		// ifModifiedSince is not null
-		if (ifModifiedSince != null) {
-			Date lastModifiedTime = new Date(file.lastModified());
-			// ignore the millisecond
-			if (ifModifiedSince.getTime() / 1000 >= lastModifiedTime.getTime() / 1000) {
-				// not exactly an error, but we can use the same interface
-				outputError(304, "Not Modified");
-				return -1;
-			}
-		}
-
-		Util.DEBUG("File: " + file.getCanonicalPath());
+		Util.DEBUG("File: " + openFile.getCanonicalPath());
 
 		// If the file is executable, use CGI
-		if (file.canExecute()) {
+		if (openFile.getKind() == OpenFileCache.CGI) {
 			Util.DEBUG("This file is executable. Use CGI!");
 			CGI();
 			return 0;
@@ -314,121 +337,322 @@ class ThreadHTTPRequestHandler implements Runnable {
 			return -1;
 		}
 
-		outputResponseHeader();
+		// look up the cache first, so that the headers describe the content that is sent
+		lookupCache();
+		lastModified = cacheEntry != null ? cacheEntry.getLastModified() : openFile.getLastModified();
+		long length = cacheEntry != null ? cacheEntry.size() : openFile.getLength();
+		etag = cacheEntry != null ? cacheEntry.getETag() : openFile.getETag();
+
+		// If-None-Match or If-Modified-Since header (a cached file is checked against its entry)
+		if (notModified()) {
+			outputNotModified();
+			return -1;
+		}
+
+		// Range header (ignored if the file has changed since the If-Range tag or date)
+		if (parser.getRange() != null && ByteRanges.ifRange(parser.getIfRange(), lastModified, etag)) {
+			ByteRanges ranges = ByteRanges.parse(parser.getRange(), length);
+			if (ranges != null) {
+				outputRanges(ranges, length);
+				return 0;
+			}
+		}
+
+		outputResponseHeader(length);
 		outToClient.writeBytes("\r\n");
 		if (outputResponseBodyFromCache() == -1)
-			outputResponseBody();
+			outputResponseBody(length);
 		return 0;
 	}
 
-	private void outputResponseHeader() throws IOException {
+	/**
+	 * @param length of the file
+	 */
+	private void outputResponseHeader(long length) throws IOException {
+		status = 200;
 		outToClient.writeBytes("HTTP/1.1 200 OK\r\n");
+		outputFileHeaders(contentType());
+
+		// Content-Type header (encoded once per resolved file)
+		outToClient.write(openFile.getContentTypeHeader());
 
-		// Date header
-		Date currentTime = new Date();
-		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss z");
-		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-		outToClient.writeBytes("Date: " + sdf.format(currentTime) + "\r\n");
+		// Content-Length header
+		outToClient.writeBytes("Content-Length: " + length + "\r\n");
+	}
+
+	/**
+	 * Output the headers of a response with (part of) the file, but Content-Type and Content-Length
+	 * @param contentType of the file
+	 */
+	private void outputFileHeaders(String contentType) throws IOException {
+		// Date header (formatted once per second)
+		outToClient.write(HTTPDate.dateHeader());
 
 		// Server header
 		outToClient.writeBytes("Server: " + ThreadHTTPServer.SERVER_NAME + "\r\n");
 
-		// Last-Modified header
-		Date lastModifiedTime = new Date(file.lastModified());
-		outToClient.writeBytes("Last-Modified: " + sdf.format(lastModifiedTime) + "\r\n");
+		// Last-Modified and ETag headers (formatted once per cache entry or resolved file)
+		if (cacheEntry != null) {
+			outToClient.write(cacheEntry.getLastModifiedHeader());
+			outToClient.write(cacheEntry.getETagHeader());
+		} else {
+			outToClient.write(openFile.getLastModifiedHeader());
+			outToClient.write(openFile.getETagHeader());
+		}
 
-		// Content-Type header
-		if (file.getCanonicalPath().endsWith(".jpg"))
-			outToClient.writeBytes("Content-Type: image/jpeg\r\n");
-		else if (file.getCanonicalPath().endsWith(".gif"))
-			outToClient.writeBytes("Content-Type: image/gif\r\n");
-		else if (file.getCanonicalPath().endsWith(".html") || file.getCanonicalPath().endsWith(".htm"))
-			outToClient.writeBytes("Content-Type: text/html\r\n");
-		else // including .txt file
-			outToClient.writeBytes("Content-Type: text/plain\r\n");
+		// Cache-Control and Expires headers of the virtual host (see CachePolicy)
+		byte[] cachingHeaders = myVH.getCachePolicy().headers(contentType);
+		if (cachingHeaders != null)
+			outToClient.write(cachingHeaders);
 
-		// Content-Length header
-		outToClient.writeBytes("Content-Length: " + (int) file.length() + "\r\n");
+		// Accept-Ranges header (see outputRanges)
+		outToClient.writeBytes("Accept-Ranges: bytes\r\n");
+	}
+
+	/**
+	 * whether the client already has the file: If-None-Match matches its entity tag, or if
+	 * If-None-Match is not present, the file has not been modified since If-Modified-Since
+	 */
+	private boolean notModified() {
+		String ifNoneMatch = parser.getIfNoneMatch();
+		if (ifNoneMatch != null)
+			return ETag.noneMatch(ifNoneMatch, etag);
+		// ignore the millisecond
+		return ifModifiedSince != -1 && ifModifiedSince / 1000 >= lastModified / 1000;
+	}
+
+	/**
+	 * Output a 304 with the validators and the caching headers of the file (and no body)
+	 */
+	private void outputNotModified() throws IOException {
+		status = 304;
+		outToClient.writeBytes("HTTP/1.1 304 Not Modified\r\n");
+		outputFileHeaders(contentType());
+		outToClient.writeBytes("\r\n");
+	}
+
+	/**
+	 * @return the media type of the file
+	 */
+	private String contentType() {
+		return openFile.getContentType();
+	}
+
+	/**
+	 * Send the ranges of the file asked by the Range header: a 206 with the range, or with a
+	 * multipart/byteranges body for several ranges, or a 416 if no range is satisfiable
+	 * The ranges are written from the cache entry if any, and otherwise transferred from
+	 * their positions in the file, so only the bytes asked for are read
+	 * @param length of the file
+	 */
+	private void outputRanges(ByteRanges ranges, long length) throws IOException {
+		Util.DEBUG(ranges.toString());
+		if (!ranges.isSatisfiable()) {
+			status = 416;
+			outToClient.writeBytes("HTTP/1.1 416 Range Not Satisfiable\r\n");
+			outToClient.write(ByteRanges.unsatisfiableHeader(length));
+			outToClient.writeBytes("\r\n");
+			return;
+		}
+
+		status = 206;
+		outToClient.writeBytes("HTTP/1.1 206 Partial Content\r\n");
+		String contentType = contentType();
+		outputFileHeaders(contentType);
+		if (ranges.isMultipart()) {
+			long contentLength = ranges.multipart(contentType);
+			outToClient.writeBytes("Content-Type: " + ByteRanges.MULTIPART_CONTENT_TYPE + "\r\n");
+			outToClient.writeBytes("Content-Length: " + contentLength + "\r\n");
+		} else {
+			outToClient.write(openFile.getContentTypeHeader());
+			outToClient.write(ranges.contentRangeHeader());
+			outToClient.writeBytes("Content-Length: " + ranges.size(0) + "\r\n");
+		}
+		outToClient.writeBytes("\r\n");
+
+		FileChannel fileChannel = cacheEntry == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+		try {
+			for (int i = 0; i < ranges.count(); i++) {
+				if (ranges.isMultipart())
+					outToClient.write(ranges.delimiter(i));
+				if (fileChannel == null) {
+					outToClient.write(cacheEntry.getContent(), (int) ranges.start(i), (int) ranges.size(i));
+					continue;
+				}
+				transferFile(fileChannel, ranges.start(i), ranges.end(i) + 1);
+			}
+			if (ranges.isMultipart())
+				outToClient.write(ranges.delimiter(ranges.count()));
+		} finally {
+			if (fileChannel != null)
+				fileChannel.close();
+		}
 	}
 
-	private void outputResponseBody() throws IOException {
-		int fileLength = (int) file.length();
-		// send file content
+	/**
+	 * Send the file from the file system
+	 * A file that fits in the cache is read as a whole and put into the cache. Any other file
+	 * is streamed to the client by transferTo, so it never enters the Java heap, whatever its size
+	 * @param length of the file, as sent in the Content-Length header
+	 */
+	private void outputResponseBody(long length) throws IOException {
+		if (ThreadHTTPServer.cache == null || !ThreadHTTPServer.cache.fits(length)) {
+			FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				transferFile(fileChannel, 0, length);
+			} finally {
+				fileChannel.close();
+			}
+			return;
+		}
+
+		// lastModified has been taken before reading, so a concurrent change is detected later
+		byte[] fileInBytes = new byte[(int) length];
 		FileInputStream fileStream = new FileInputStream(file);
+		try {
+			if (fileStream.readNBytes(fileInBytes, 0, fileInBytes.length) < fileInBytes.length)
+				throw new EOFException(file + " is shorter than " + length + " bytes");
+		} finally {
+			fileStream.close();
+		}
+		outToClient.write(fileInBytes, 0, fileInBytes.length);
+		// put the file content into cache (least recently used files may be evicted)
+		ThreadHTTPServer.cache.put(file, fileInBytes, lastModified);
+	}
 
-		byte[] fileInBytes = new byte[fileLength];
-		fileStream.read(fileInBytes);
-		outToClient.write(fileInBytes, 0, fileLength);
-		fileStream.close();
-		// put the file content into cache if possible
-		synchronized (ThreadHTTPRequestHandler.class) {
-			// do nothing if the cache is full. There is no replacement policy
-			if (ThreadHTTPServer.cache != null
-					&& fileInBytes.length + ThreadHTTPServer.cacheCurrentSize <= ThreadHTTPServer.cacheMaxSize) {
-				ThreadHTTPServer.cache.put(file, fileInBytes);
-				ThreadHTTPServer.cacheCurrentSize += fileInBytes.length;
+	/**
+	 * Transfer the bytes [position, end) of a file to the client
+	 * The socket has a channel (see ThreadHTTPServer), so the bytes go from the file to the socket
+	 * in the kernel (i.e., sendfile) without being copied into the Java heap
+	 */
+	private void transferFile(FileChannel fileChannel, long position, long end) throws IOException {
+		SocketChannel channel = connSocket.getChannel();
+		WritableByteChannel out = channel != null ? channel : Channels.newChannel(outToClient);
+		while (position < end) {
+			long n = fileChannel.transferTo(position, end - position, out);
+			if (n == 0) {
+				// the socket of a virtual thread is non-blocking underneath, so transferTo sends
+				// nothing while it is not writable: write a block instead, which waits for it
+				if (transferBuffer == null)
+					transferBuffer = ByteBuffer.allocate(TRANSFER_BLOCK_SIZE);
+				transferBuffer.clear();
+				transferBuffer.limit((int) Math.min(TRANSFER_BLOCK_SIZE, end - position));
+				n = fileChannel.read(transferBuffer, position);
+				if (n <= 0)
+					throw new EOFException(file + " is shorter than " + end + " bytes");
+				transferBuffer.flip();
+				while (transferBuffer.hasRemaining())
+					out.write(transferBuffer);
 			}
+			position += n;
+			if (channel != null)
+				bytesTransferred += n;
 		}
 	}
 
+	/**
+	 * Look up the file in the cache
+	 */
+	private void lookupCache() {
+		if (ThreadHTTPServer.cache == null)
+			return;
+		// note that if the content get cached and then get modified, the old content will still be returned
+		// the lookup takes no lock, and the content of an entry never changes, so no lock is held while writing
+		cacheEntry = ThreadHTTPServer.cache.get(file);
+		Util.DEBUG(ThreadHTTPServer.cache.toString());
+	}
+
 	/**
 	 * Output the file directly from cache if possible, otherwise return -1
-	 * 
 	 * @return 0 if succeed, otherwise -1
 	 * @throws IOException
 	 */
 	private int outputResponseBodyFromCache() throws IOException {
-		// note that only one thread can enter the critical section
-		synchronized (ThreadHTTPRequestHandler.class) {
-			// note that if the content get cached and then get modified, the old content
-			// will still be returned
-			if (ThreadHTTPServer.cache != null && ThreadHTTPServer.cache.containsKey(file)) {
-				Util.DEBUG("cacheSize:" + ThreadHTTPServer.cacheCurrentSize + "; cacheMaxSize:"
-						+ ThreadHTTPServer.cacheMaxSize);
-				byte[] content = ThreadHTTPServer.cache.get(file);
-				outToClient.write(content, 0, content.length);
-				return 0;
-			}
+		if (cacheEntry == null)
 			return -1;
-		}
+		byte[] content = cacheEntry.getContent();
+		outToClient.write(content, 0, content.length);
+		return 0;
 	}
 
 	/**
 	 * return a header telling the client whether the service is available
 	 * If the socket in connSockQ is not piling up, then OK, otherwise busy
+	 * With HandOff accept, the waiting connections are in the backlog of the listening socket,
+	 * which cannot be seen, so OK if and only if another thread of the pool is idle
+	 * The statistics of connSockQ (sojourn times and drops) follow as a text body
 	 */
 	private void hbMonitor() throws IOException {
-		synchronized (ThreadHTTPServer.connSockQ) {
-			if (ThreadHTTPServer.connSockQ.isEmpty()) {
+		if (ThreadHTTPServer.virtualThreads) {
+			// this connection holds a slot as well, so the server is full if it holds the last one
+			if (ThreadHTTPServer.threadSlots.availablePermits() > 0) {
+				status = 200;
 				outToClient.writeBytes("HTTP/1.1 200 OK\r\n");
 			} else {
+				status = 503;
 				outToClient.writeBytes("HTTP/1.1 503 Service Unavailable\r\n");
 			}
+			return;
 		}
+		boolean idle;
+		if (ThreadHTTPServer.connSockQ != null) {
+			idle = ThreadHTTPServer.connSockQ.isEmpty();
+		} else {
+			// this connection keeps a thread busy as well
+			idle = ThreadHTTPServer.busyThreads.get() < ThreadHTTPServer.threadPoolSize;
+		}
+		if (idle) {
+			status = 200;
+			outToClient.writeBytes("HTTP/1.1 200 OK\r\n");
+		} else {
+			status = 503;
+			outToClient.writeBytes("HTTP/1.1 503 Service Unavailable\r\n");
+		}
+		// the statistics of the queue for the operators
+		if (ThreadHTTPServer.connSockQ != null) {
+			outToClient.writeBytes("Content-Type: text/plain\r\n\r\n");
+			outToClient.writeBytes(ThreadHTTPServer.connSockQ + "\n");
+		}
+	}
+
+	/**
+	 * return the metrics of the server in the Prometheus text format, with those of connSockQ if any
+	 */
+	private void outputMetrics() throws IOException {
+		StringBuilder sb = Metrics.scrape(ThreadHTTPServer.cache);
+		if (ThreadHTTPServer.connSockQ != null)
+			ThreadHTTPServer.connSockQ.stats.write(sb);
+		byte[] content = sb.toString().getBytes();
+		status = 200;
+		outToClient.writeBytes("HTTP/1.1 200 OK\r\n");
+		outToClient.write(HTTPDate.dateHeader());
+		outToClient.writeBytes("Server: " + ThreadHTTPServer.SERVER_NAME + "\r\n");
+		outToClient.writeBytes("Content-Type: " + Metrics.CONTENT_TYPE + "\r\n");
+		outToClient.writeBytes("Content-Length: " + content.length + "\r\n\r\n");
+		outToClient.write(content);
 	}
 
 	/**
 	 * file is an executable and use CGI to execute it
 	 */
 	public int CGI() throws IOException {
-		// build the process
-		ProcessBuilder pb = new ProcessBuilder(file.getCanonicalPath());
-		Map<String, String> env = pb.environment();
-
-		// post data will be the stdin of CGI script, so put it in a string
-		char buf[] = null;
-		if (requestType == POST_REQUEST && contentLength != -1) {
-			buf = new char[contentLength];
-			// read data (note that in our implementation POST for CGI is the only request
-			// that uses data)
-			// also note the we cannot use readLine, because the client may not send \n or
-			// \r or EOF
-			// even though buf is larger, you can only read contentLength characters
-			if (inFromClient.read(buf) != contentLength) {
-				outputError(400, "Bad Request");
-				Util.DEBUG("actual content length is not equal to the length specified!");
-				return -1;
-			}
+		// build the process, or the request to the FastCGI responder of the virtual host
+		ProcessBuilder pb = null;
+		Map<String, String> env;
+		if (myVH.getFastCGIPass() != null) {
+			env = new HashMap<>();
+		} else {
+			pb = new ProcessBuilder(openFile.getCanonicalPath());
+			env = pb.environment();
+		}
+
+		// post data will be the stdin of CGI script, streamed as it arrives
+		// (note that in our implementation POST for CGI is the only request that uses data)
+		RequestBody body = null;
+		if (requestType == POST_REQUEST && contentLength > 0) {
+			body = new RequestBody(contentLength);
+			// the bytes that arrived together with the headers are in inBuffer, the rest is read from the socket
+			body.write(inBuffer);
 		}
 
 		// set environment variables
@@ -449,29 +673,62 @@ class ThreadHTTPRequestHandler implements Runnable {
 		env.put("SERVER_PORT", "" + ThreadHTTPServer.serverPort);
 		env.put("SERVER_PROTOCOL", "HTTP/1.1");
 		env.put("SERVER_SOFTWARE", ThreadHTTPServer.SERVER_NAME);
+		env.put("GATEWAY_INTERFACE", "CGI/1.1");
+		env.put("SCRIPT_FILENAME", openFile.getCanonicalPath());
 
 		env.put("REMOTE_ADDR", connSocket.getInetAddress().getHostAddress());
 		env.put("REMOTE_HOST", connSocket.getInetAddress().getHostName());
 		env.put("REMOTE_IDENT", ""); // the authentication env variale is ignored
 		env.put("REMOTE_USER", ""); // the authentication env variale is ignored
 
-		// start the process and connect IO
-		Process p = pb.start();
-		InputStream inputStream = p.getInputStream();
-		BufferedReader r = new BufferedReader(new InputStreamReader(inputStream));
-		if (requestType == POST_REQUEST && contentLength != -1) {
-			DataOutputStream outstr = new DataOutputStream(p.getOutputStream());
-			outstr.writeBytes(new String(buf));
-			outstr.flush();
+		// start the process (or send the request to the FastCGI responder) and connect IO
+		Process p = null;
+		FastCGIClient.Request fastCGIRequest = null;
+		InputStream inputStream;
+		OutputStream stdin;
+		if (pb == null) {
+			fastCGIRequest = FastCGIClient.get(myVH.getFastCGIPass()).start(env);
+			inputStream = fastCGIRequest.getInputStream();
+			stdin = fastCGIRequest.getOutputStream();
+		} else {
+			p = pb.start();
+			inputStream = p.getInputStream();
+			stdin = p.getOutputStream();
+		}
+
+		if (body == null) {
+			stdin.close();
+		} else {
+			// another thread copies the body to stdin, so that this thread reads the body
+			// from the client without waiting for the script (see RequestBody)
+			RequestBody input = body;
+			ThreadHTTPServer.cgiExecutor.execute(() -> {
+				try {
+					input.transferTo(stdin);
+				} catch (IOException e) {
+					Util.DEBUG("CGI stdin: " + e);
+				}
+			});
+			try {
+				body.receive(inFromClient);
+			} catch (IOException e) {
+				Util.DEBUG("actual content length is not equal to the length specified!");
+				if (p != null)
+					p.destroy();
+				else
+					fastCGIRequest.abort();
+				inputStream.close();
+				outputError(400, "Bad Request");
+				return -1;
+			}
 		}
+
 		// send response and header
+		status = 200;
 		outToClient.writeBytes("HTTP/1.1 200 OK\r\n");
 
-		// Date header
-		Date currentTime = new Date();
-		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss z");
-		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-		outToClient.writeBytes("Date: " + sdf.format(currentTime) + "\r\n");
+		// Date header (formatted once per second)
+		outToClient.write(HTTPDate.dateHeader());
 
 		// Server header
 		outToClient.writeBytes("Server: " + ThreadHTTPServer.SERVER_NAME + "\r\n");
@@ -484,18 +741,27 @@ class ThreadHTTPRequestHandler implements Runnable {
 
 		outToClient.writeBytes("\r\n");
 
-		// Output from the CGI script
-		// here, we ignore the header output by the CGI program and treat it the same as
-		// data
-		String line = r.readLine();
-		while (line != null) {
-			// Util.DEBUG(line);
-			int lineLen = line.length();
-			outToClient.writeBytes(Integer.toHexString(lineLen + 1) + "\r\n");
-			outToClient.writeBytes(line + "\n\r\n"); // \n is appended because readLine discarded it
-			line = r.readLine();
-		}
-		outToClient.writeBytes("0\r\n\r\n");
+		// Output from the CGI script, forwarded block by block as it arrives (one chunk per block)
+		// here, we ignore the header output by the CGI program and treat it the same as data
+		// a slow client blocks the write, and then the script blocks once the pipe is full
+		byte[] chunkBuf = Chunked.newBuffer();
+		try {
+			ByteBuffer chunk = Chunked.read(inputStream, chunkBuf);
+			while (chunk != null) {
+				outToClient.write(chunk.array(), chunk.position(), chunk.remaining());
+				chunk = Chunked.read(inputStream, chunkBuf);
+			}
+		} catch (IOException e) {
+			// the client has gone away, the script is not needed any more
+			if (p != null)
+				p.destroy();
+			else
+				fastCGIRequest.abort();
+			throw e;
+		} finally {
+			inputStream.close();
+		}
+		outToClient.write(Chunked.LAST_CHUNK);
 		return 0;
 	}
 
@@ -507,6 +773,7 @@ class ThreadHTTPRequestHandler implements Runnable {
 	 */
 	void outputError(int errCode, String errMsg) {
 		try {
+			status = errCode;
 			outToClient.writeBytes("HTTP/1.1 " + errCode + " " + errMsg + "\r\n");
 		} catch (Exception e) {
 		}
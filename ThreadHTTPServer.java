@@ -5,7 +5,10 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.cli.*;
 
 class ThreadHTTPServer {
@@ -21,15 +24,54 @@ class ThreadHTTPServer {
 	/* the default virtual host if no Host header is specified*/
 	public static VirtualHost defaultVHost;
 
-	public static HashMap<File, byte[]> cache; // cache, where key is the file and value is the content
-	public static int cacheCurrentSize = 0;
-	public static int cacheMaxSize = 0;
+	public static FileCache cache; // cache, where key is the file and value is the content (null if no CacheSize)
+
+	// the resolved static requests (null if OpenFileCache off), and their number and valid time (in millisec) by default
+	// based on OpenFileCache <max entries> [<valid seconds>] in the configuration file
+	public static final int OPEN_FILE_CACHE_MAX = 1000;
+	public static final long OPEN_FILE_CACHE_VALID = 5000;
+	public static OpenFileCache openFileCache = new OpenFileCache(OPEN_FILE_CACHE_MAX, OPEN_FILE_CACHE_VALID);
+
+	// maximum size (in bytes) of a request body, larger requests get 413, 0 means unlimited (default 1 GB)
+	// based on LimitRequestBody <bytes> in the configuration file
+	public static long limitRequestBody = 1L << 30;
+
+	// the threads that copy the request bodies to the stdin of the CGI scripts, while
+	// the handler threads read the bodies from the clients and then the outputs of the scripts
+	public static ExecutorService cgiExecutor;
 
 	// thread pool size (default 3)
 	// based on ThreadPoolSize <number of threads> in the configuration file
 	public static int threadPoolSize = 3;
 	public static Thread[] serviceThreads;
-	public static Vector<Socket> connSockQ;
+	public static ServerSocket listenSocket;
+
+	// how the accepted connections are handed over to the threads of the pool (default lockfree):
+	// locked (a Vector with wait/notify), lockfree (a lock-free queue, see ConnectionQueue), or accept
+	// (no queue: every thread of the pool accepts its connections itself, like the workers of nginx)
+	// based on HandOff <locked | lockfree | accept> in the configuration file
+	public static String handOff = "lockfree";
+	public static ConnectionQueue connSockQ; // null with HandOff accept
+
+	// which connections of the queue are dropped with a fast 503 when they are taken (default fifo):
+	// fifo (none: every connection is served, however long it has waited), codel (those that have waited
+	// longer than CODEL_TARGET while the queue is a standing queue, see ConnectionQueue), or deadline (those
+	// that have waited longer than QueueDeadline, since their clients have likely given up)
+	// based on QueueDiscipline <fifo | codel | deadline> and QueueDeadline <millisec> (default 3000) in the configuration file
+	public static String queueDiscipline = "fifo";
+	public static long queueDeadline = 3000;
+	// number of threads of the pool serving a connection, for the Heartbeat Monitoring with HandOff accept
+	public static final AtomicInteger busyThreads = new AtomicInteger();
+
+	// whether the connections are served by the pool of platform threads, or each one by a
+	// new virtual thread (Java 21) instead of the pool (default platform)
+	// based on ExecutionModel <platform | virtual> in the configuration file
+	public static boolean virtualThreads = false;
+	// maximum number of connections served concurrently with ExecutionModel virtual
+	public static final int MAX_VIRTUAL_THREAD = 10000;
+	// a slot per connection being served with ExecutionModel virtual: the main thread takes one
+	// before accepting a connection (so it stops accepting at the limit), and the handler gives it back
+	public static Semaphore threadSlots;
 
 	public static void main(String args[]) throws Exception {
 
@@ -38,15 +80,36 @@ class ThreadHTTPServer {
 
 		// read config
 		readConfig();
+
+		// keep the caches consistent with the document roots
+		if (cache != null || openFileCache != null)
+			CacheWatcher.start(cache, openFileCache, virtualHosts.values());
 		
-		// create server socket
-		ServerSocket listenSocket = new ServerSocket(serverPort);
+		cgiExecutor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "CGI stdin");
+			t.setDaemon(true);
+			return t;
+		});
+
+		// create server socket, with a channel so that the handlers can send files with transferTo
+		listenSocket = ServerSocketChannel.open().bind(new InetSocketAddress(serverPort)).socket();
 
 		System.out.println("server listening at: " + listenSocket);
+
+		if (virtualThreads) {
+			System.out.println("execution model: virtual threads");
+			serveOnVirtualThreads(listenSocket);
+			return;
+		}
+
 		System.out.println("thread pool size: " + threadPoolSize);
+		System.out.println("hand-off: " + handOff);
 
 		// create socket queue
-		connSockQ = new Vector<>();
+		if (!handOff.equals("accept")) {
+			System.out.println("queue discipline: " + queueDiscipline);
+			connSockQ = ConnectionQueue.create(handOff, queueDiscipline, queueDeadline);
+		}
 
 		// create thread pool
 		serviceThreads = new Thread[threadPoolSize];
@@ -57,6 +120,10 @@ class ThreadHTTPServer {
 			serviceThreads[i].start();
 		}
 
+		// the threads of the pool accept the connections themselves
+		if (connSockQ == null)
+			return;
+
 		while (true) {
 
 			try {
@@ -66,10 +133,7 @@ class ThreadHTTPServer {
 				Util.DEBUG("\nReceive request from " + connectionSocket);
 
 				// put the connectionSocket to the Q
-				synchronized(connSockQ) {
-					connSockQ.add(connectionSocket);
-					connSockQ.notify();
-				}
+				connSockQ.put(connectionSocket);
 
 			} catch (IOException e) {
 				System.out.println("cannot handle IO for connection socket");
@@ -77,6 +141,49 @@ class ThreadHTTPServer {
 		}
 	}
 
+	/**
+	 * Serve every connection on a new virtual thread, with the blocking logic of the handlers of the pool
+	 * @param listenSocket
+	 */
+	private static void serveOnVirtualThreads(ServerSocket listenSocket) {
+		threadSlots = new Semaphore(MAX_VIRTUAL_THREAD);
+		ExecutorService executor = Util.newVirtualThreadPerTaskExecutor();
+
+		while (true) {
+
+			// wait for a free slot, the connections beyond the limit wait in the backlog of the socket
+			threadSlots.acquireUninterruptibly();
+
+			Socket connectionSocket = null;
+			try {
+
+				connectionSocket = listenSocket.accept();
+				Util.DEBUG("\nReceive request from " + connectionSocket);
+
+				Socket socket = connectionSocket;
+				executor.execute(() -> {
+					try {
+						new ThreadHTTPRequestHandler(-1).serve(socket);
+					} finally {
+						threadSlots.release();
+					}
+				});
+
+			} catch (IOException | RuntimeException e) {
+				// no thread serves the connection: give its slot back and close it
+				threadSlots.release();
+				if (connectionSocket != null) {
+					try {
+						connectionSocket.close();
+					} catch (IOException ce) {
+						Util.DEBUG("cannot close " + connectionSocket + ": " + ce);
+					}
+				}
+				System.out.println("cannot handle IO for connection socket");
+			}
+		}
+	}
+
 	/**
 	 * Parse the arguments The only argument required is config
 	 * 
@@ -122,12 +229,47 @@ class ThreadHTTPServer {
 					serverPort = Integer.parseInt(st.substring(st.indexOf("Listen") + 7).trim());
 				}
 				else if(st.contains("CacheSize") && parsingVH == false){
-					cacheMaxSize = 1024 * Integer.parseInt(st.substring(st.indexOf("CacheSize") + 10).trim());
-					cache = new HashMap<>();
+					cache = new FileCache(1024L * Long.parseLong(st.substring(st.indexOf("CacheSize") + 10).trim()));
+				}
+				else if(st.contains("OpenFileCache") && parsingVH == false){
+					String[] args = st.substring(st.indexOf("OpenFileCache") + 14).trim().split("\\s+");
+					try{
+						if(args.length == 1 && args[0].equals("off"))
+							openFileCache = null;
+						else if(args.length > 2 || Integer.parseInt(args[0]) < 1)
+							throw new IllegalArgumentException();
+						else
+							openFileCache = new OpenFileCache(Integer.parseInt(args[0]),
+									args.length == 2 ? 1000 * Long.parseLong(args[1]) : OPEN_FILE_CACHE_VALID);
+					} catch(IllegalArgumentException e){
+						Util.panic(7, "OpenFileCache should be <max entries> [<valid seconds>] or off!");
+					}
 				}
 				else if(st.contains("ThreadPoolSize") && parsingVH == false){
 					threadPoolSize = Integer.parseInt(st.substring(st.indexOf("ThreadPoolSize") + 15).trim());
 				}
+				else if(st.contains("HandOff") && parsingVH == false){
+					handOff = st.substring(st.indexOf("HandOff") + 8).trim();
+					if(!handOff.equals("locked") && !handOff.equals("lockfree") && !handOff.equals("accept"))
+						Util.panic(7, "HandOff should be locked, lockfree or accept!");
+				}
+				else if(st.contains("QueueDiscipline") && parsingVH == false){
+					queueDiscipline = st.substring(st.indexOf("QueueDiscipline") + 16).trim();
+					if(!queueDiscipline.equals("fifo") && !queueDiscipline.equals("codel") && !queueDiscipline.equals("deadline"))
+						Util.panic(7, "QueueDiscipline should be fifo, codel or deadline!");
+				}
+				else if(st.contains("QueueDeadline") && parsingVH == false){
+					queueDeadline = Long.parseLong(st.substring(st.indexOf("QueueDeadline") + 14).trim());
+				}
+				else if(st.contains("ExecutionModel") && parsingVH == false){
+					String model = st.substring(st.indexOf("ExecutionModel") + 15).trim();
+					if(!model.equals("platform") && !model.equals("virtual"))
+						Util.panic(7, "ExecutionModel should be platform or virtual!");
+					virtualThreads = model.equals("virtual");
+				}
+				else if(st.contains("LimitRequestBody") && parsingVH == false){
+					limitRequestBody = Long.parseLong(st.substring(st.indexOf("LimitRequestBody") + 17).trim());
+				}
 				else if(st.contains("VirtualHost") && parsingVH == false){ // note that *:6789 is ignored
 					vh = new VirtualHost();
 					parsingVH = true;
@@ -150,6 +292,33 @@ class ThreadHTTPServer {
 					} else if(st.contains("ServerName")){
 						int idx = st.indexOf("ServerName") + 11;
 						vh.setServerName(st.substring(idx).trim());
+					} else if(st.contains("FastCGIPass")){
+						int idx = st.indexOf("FastCGIPass") + 12;
+						String fastCGIPass = st.substring(idx).trim();
+						try{
+							FastCGIClient.parseAddress(fastCGIPass);
+						} catch(IllegalArgumentException e){
+							Util.panic(6, "cannot parse FastCGIPass " + fastCGIPass + "!");
+						}
+						vh.setFastCGIPass(fastCGIPass);
+					} else if(st.contains("CacheControl")){
+						vh.getCachePolicy().setCacheControl(st.substring(st.indexOf("CacheControl") + 13).trim());
+					} else if(st.contains("ExpiresDefault")){
+						String seconds = st.substring(st.indexOf("ExpiresDefault") + 15).trim();
+						try{
+							vh.getCachePolicy().setExpiresDefault(Long.parseLong(seconds));
+						} catch(IllegalArgumentException e){
+							Util.panic(7, "cannot parse ExpiresDefault " + seconds + "!");
+						}
+					} else if(st.contains("ExpiresByType")){
+						String[] args = st.substring(st.indexOf("ExpiresByType") + 14).trim().split("\\s+");
+						try{
+							if(args.length != 2)
+								throw new IllegalArgumentException();
+							vh.getCachePolicy().setExpiresByType(args[0], Long.parseLong(args[1]));
+						} catch(IllegalArgumentException e){
+							Util.panic(7, "ExpiresByType should be <media type> <seconds>!");
+						}
 					}
 				}
 			}
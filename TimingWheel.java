@@ -0,0 +1,139 @@
+import java.util.*;
+import java.nio.channels.*;
+
+/**
+ * A hashed timing wheel for the connection timeouts of an event loop
+ * Time is divided into ticks of TIMER_TICK millisec, and a timer whose deadline falls
+ * into tick t is linked into slot (t mod wheelSize). Scheduling, rescheduling and
+ * canceling a timer are O(1), and expire() only visits the slots of the ticks that
+ * have passed, so the work is proportional to the number of expired timers (plus
+ * the timers more than one wheel turn ahead in the same slots, if any).
+ * A timer never expires before its deadline, and at most one tick after it.
+ * Not thread-safe: a timing wheel is only used by the thread of its event loop.
+ */
+public class TimingWheel {
+
+	/**
+	 * The timer of a connection. A connection has at most one pending timeout at a
+	 * time, so the same timer is rescheduled whenever the connection changes phase
+	 */
+	public static final class Timer {
+		SelectionKey key; // the connection of this timer (changed when the handler is recycled)
+		long deadline; // in millisec
+		boolean scheduled = false;
+		int slot; // the slot of the timer if scheduled
+		Timer prev, next; // links in the slot
+
+		public Timer(SelectionKey key) {
+			this.key = key;
+		}
+
+		public SelectionKey getKey() {
+			return key;
+		}
+	}
+
+	private final long tick; // in millisec
+	private final Timer[] slots; // the head of the list of each slot
+	private final int mask; // wheelSize - 1
+	private long currentTick; // the slots of the ticks before currentTick have been expired
+	private int size = 0; // number of scheduled timers
+
+	/**
+	 * @param tick in millisec
+	 * @param wheelSize number of slots, must be a power of 2
+	 * @param now current time in millisec
+	 */
+	public TimingWheel(long tick, int wheelSize, long now) {
+		this.tick = tick;
+		slots = new Timer[wheelSize];
+		mask = wheelSize - 1;
+		currentTick = now / tick;
+	}
+
+	/**
+	 * Schedule (or reschedule) a timer
+	 * @param timer
+	 * @param deadline in millisec
+	 */
+	public void schedule(Timer timer, long deadline) {
+		cancel(timer);
+		timer.deadline = deadline;
+		// round up, so that a timer never expires early
+		long t = Math.max((deadline + tick - 1) / tick, currentTick);
+		int slot = (int) (t & mask);
+		timer.slot = slot;
+		timer.prev = null;
+		timer.next = slots[slot];
+		if (slots[slot] != null)
+			slots[slot].prev = timer;
+		slots[slot] = timer;
+		timer.scheduled = true;
+		size++;
+	}
+
+	/**
+	 * Cancel a timer if it is scheduled
+	 * @param timer
+	 */
+	public void cancel(Timer timer) {
+		if (!timer.scheduled)
+			return;
+		if (timer.prev != null) {
+			timer.prev.next = timer.next;
+		} else {
+			// the timer is the head of its slot
+			slots[timer.slot] = timer.next;
+		}
+		if (timer.next != null)
+			timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+		timer.scheduled = false;
+		size--;
+	}
+
+	/**
+	 * Remove the timers whose deadline has passed
+	 * @param now current time in millisec
+	 * @param expired the expired timers are added to it
+	 */
+	public void expire(long now, List<Timer> expired) {
+		long nowTick = now / tick;
+		// no need to visit a slot more than once
+		long lastTick = Math.min(nowTick, currentTick + slots.length - 1);
+		for (long t = currentTick; t <= lastTick && size > 0; t++) {
+			Timer timer = slots[(int) (t & mask)];
+			while (timer != null) {
+				Timer next = timer.next;
+				// timers of a later turn of the wheel stay in the slot
+				if (timer.deadline <= now) {
+					cancel(timer);
+					expired.add(timer);
+				}
+				timer = next;
+			}
+		}
+		currentTick = nowTick + 1;
+	}
+
+	/**
+	 * The time to wait for the next timer to expire, used as the select timeout
+	 * @param now current time in millisec
+	 * @return millisec to wait (at least 1), or 0 if no timer is scheduled
+	 */
+	public long nextTimeout(long now) {
+		if (size == 0)
+			return 0;
+		for (long t = currentTick; t < currentTick + slots.length; t++) {
+			if (slots[(int) (t & mask)] != null) {
+				return Math.max(t * tick - now, 1);
+			}
+		}
+		return slots.length * tick;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -1,3 +1,5 @@
+import java.util.concurrent.*;
+
 public class Util {
 
 	public static final boolean _DEBUG = false;
@@ -12,6 +14,21 @@ public class Util {
 		System.exit(status);
 	}
 
+	/**
+	 * Create an executor that runs every task on a new virtual thread
+	 * Virtual threads need Java 21, so the method is looked up at run time,
+	 * and the servers still compile and run (with platform threads) on older JDKs
+	 * @return the executor (the server exits if the JVM has no virtual threads)
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			panic(7, "ExecutionModel virtual needs Java 21 or later!");
+			return null;
+		}
+	}
+
 	public static void DEBUG(String s) {
 		if (_DEBUG)
 			System.out.println(s);
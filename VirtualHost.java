@@ -4,6 +4,8 @@
 public class VirtualHost {
 	private String docRoot;
 	private String serverName;
+	private String fastCGIPass; // the address of the FastCGI responder that runs the scripts, or null to fork them
+	private final CachePolicy cachePolicy = new CachePolicy(); // Cache-Control and Expires of the static files
 
 	public VirtualHost(){}
 
@@ -28,7 +30,19 @@ public class VirtualHost {
 		this.serverName = serverName;
 	}
 
+	public String getFastCGIPass(){
+		return fastCGIPass;
+	}
+
+	public void setFastCGIPass(String fastCGIPass){
+		this.fastCGIPass = fastCGIPass;
+	}
+
+	public CachePolicy getCachePolicy(){
+		return cachePolicy;
+	}
+
 	public String toString(){
-		return "<" + serverName + ", " + docRoot + ">";
+		return "<" + serverName + ", " + docRoot + (fastCGIPass != null ? ", " + fastCGIPass : "") + ">";
 	}
 }
@@ -3,4 +3,5 @@
 rm *.class
 rm HTTPServer.jar
 rm ThreadHTTPServer.jar
-rm SelectHTTPServer.jar
\ No newline at end of file
+rm SelectHTTPServer.jar
+rm LoadGenerator.jar
\ No newline at end of file
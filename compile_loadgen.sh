@@ -0,0 +1,10 @@
+#!/bin/bash
+
+rm *.class
+rm LoadGenerator.jar
+javac -cp commons-cli-1.4.jar LoadGenerator.java Util.java
+if [[ -f "LoadGenerator.class" ]] && [[ -f "Util.class" ]]
+then
+	jar cfm LoadGenerator.jar MANIFEST_LOADGEN.MF *.class
+	rm *.class
+fi
\ No newline at end of file
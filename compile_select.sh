@@ -2,8 +2,8 @@
 
 rm *.class
 rm SelectHTTPServer.jar
-javac -cp commons-cli-1.4.jar SelectHTTPServer.java SelectHTTPRequestHandler.java VirtualHost.java Util.java Command.java ShutdownCommand.java CommandThread.java
-if [[ -f "SelectHTTPServer.class" ]] && [[ -f "SelectHTTPRequestHandler.class" ]] && [[ -f "VirtualHost.class" ]] && [[ -f "Util.class" ]] && [[ -f "Command.class" ]] && [[ -f "CommandThread.class" ]] && [[ -f "ShutdownCommand.class" ]]
+javac -cp commons-cli-1.4.jar SelectHTTPServer.java SelectHTTPRequestHandler.java EventLoop.java TimingWheel.java BufferPool.java CGIProcess.java Chunked.java ByteRanges.java ETag.java FastCGIClient.java RequestBody.java Metrics.java HTTPRequestParser.java HTTPDate.java VirtualHost.java CachePolicy.java FileCache.java OpenFileCache.java CacheWatcher.java Util.java Command.java ShutdownCommand.java CommandThread.java
+if [[ -f "SelectHTTPServer.class" ]] && [[ -f "SelectHTTPRequestHandler.class" ]] && [[ -f "EventLoop.class" ]] && [[ -f "TimingWheel.class" ]] && [[ -f "BufferPool.class" ]] && [[ -f "CGIProcess.class" ]] && [[ -f "Chunked.class" ]] && [[ -f "ByteRanges.class" ]] && [[ -f "ETag.class" ]] && [[ -f "FastCGIClient.class" ]] && [[ -f "RequestBody.class" ]] && [[ -f "Metrics.class" ]] && [[ -f "HTTPRequestParser.class" ]] && [[ -f "HTTPDate.class" ]] && [[ -f "VirtualHost.class" ]] && [[ -f "CachePolicy.class" ]] && [[ -f "FileCache.class" ]] && [[ -f "OpenFileCache.class" ]] && [[ -f "CacheWatcher.class" ]] && [[ -f "Util.class" ]] && [[ -f "Command.class" ]] && [[ -f "CommandThread.class" ]] && [[ -f "ShutdownCommand.class" ]]
 then
 	jar cfm SelectHTTPServer.jar MANIFEST_SELECT.MF *.class
 	rm *.class
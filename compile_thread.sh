@@ -2,8 +2,8 @@
 
 rm *.class
 rm ThreadHTTPServer.jar
-javac -cp commons-cli-1.4.jar ThreadHTTPServer.java ThreadHTTPRequestHandler.java VirtualHost.java Util.java
-if [[ -f "ThreadHTTPServer.class" ]] && [[ -f "ThreadHTTPRequestHandler.class" ]] && [[ -f "VirtualHost.class" ]] && [[ -f "Util.class" ]]
+javac -cp commons-cli-1.4.jar ThreadHTTPServer.java ThreadHTTPRequestHandler.java ConnectionQueue.java Chunked.java ByteRanges.java ETag.java FastCGIClient.java RequestBody.java Metrics.java HTTPRequestParser.java HTTPDate.java VirtualHost.java CachePolicy.java FileCache.java OpenFileCache.java CacheWatcher.java Util.java
+if [[ -f "ThreadHTTPServer.class" ]] && [[ -f "ThreadHTTPRequestHandler.class" ]] && [[ -f "ConnectionQueue.class" ]] && [[ -f "Chunked.class" ]] && [[ -f "ByteRanges.class" ]] && [[ -f "ETag.class" ]] && [[ -f "FastCGIClient.class" ]] && [[ -f "RequestBody.class" ]] && [[ -f "Metrics.class" ]] && [[ -f "HTTPRequestParser.class" ]] && [[ -f "HTTPDate.class" ]] && [[ -f "VirtualHost.class" ]] && [[ -f "CachePolicy.class" ]] && [[ -f "FileCache.class" ]] && [[ -f "OpenFileCache.class" ]] && [[ -f "CacheWatcher.class" ]] && [[ -f "Util.class" ]]
 then
 	jar cfm ThreadHTTPServer.jar MANIFEST_THREAD.MF *.class
 	rm *.class
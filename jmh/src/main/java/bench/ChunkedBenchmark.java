@@ -0,0 +1,69 @@
+package bench;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The chunked framing of a CGI output: the old framing of the blocking handlers, a
+ * chunk per line with readLine and DataOutputStream.writeBytes (baseline), against
+ * Chunked (chunked), a chunk per block read with a single write per chunk
+ * The output is SIZE bytes of lines of LINE characters, and the chunks are written
+ * to a ByteArrayOutputStream standing for the socket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkedBenchmark {
+
+	@Param({ "1024", "65536" })
+	public int size;
+
+	@Param({ "40" })
+	public int line;
+
+	private byte[] output;
+	private ByteArrayOutputStream socket;
+	private DataOutputStream outToClient;
+	private final byte[] buf = Chunked.newBuffer();
+
+	@Setup
+	public void setup() {
+		output = new byte[size];
+		for (int i = 0; i < size; i++)
+			output[i] = (byte) (i % line == line - 1 ? '\n' : 'a' + i % 26);
+		socket = new ByteArrayOutputStream(size * 2);
+		outToClient = new DataOutputStream(socket);
+	}
+
+	@Benchmark
+	public int baseline() throws IOException {
+		socket.reset();
+		BufferedReader r = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(output)));
+		String l = r.readLine();
+		while (l != null) {
+			int lineLen = l.length();
+			outToClient.writeBytes(Integer.toHexString(lineLen + 1) + "\r\n");
+			outToClient.writeBytes(l + "\n\r\n"); // \n is appended because readLine discarded it
+			l = r.readLine();
+		}
+		outToClient.writeBytes("0\r\n\r\n");
+		return socket.size();
+	}
+
+	@Benchmark
+	public int chunked() throws IOException {
+		socket.reset();
+		InputStream in = new ByteArrayInputStream(output);
+		ByteBuffer chunk;
+		while ((chunk = Chunked.read(in, buf)) != null)
+			socket.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+		socket.write(Chunked.LAST_CHUNK);
+		return socket.size();
+	}
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A lookup of the file cache: the first FileCache, an access-ordered LinkedHashMap
+ * behind the lock of the cache (baseline), against the lock-free FileCache (lockFree)
+ * The cache holds FILES small files and every lookup is a hit (or a miss) on one of
+ * them in turn. Run it with more threads (-t 4) to see the contention on the lock
+ * of the baseline: every hit of the LinkedHashMap also moves the entry to the tail.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileCacheBenchmark {
+
+	private static final int FILES = 64;
+
+	@Param({ "hit", "miss" })
+	public String lookup;
+
+	private LockedCache lockedCache;
+	private FileCache fileCache;
+	private File[] files;
+
+	/**
+	 * The next file looked up by a thread
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+	}
+
+	@Setup
+	public void setup() {
+		lockedCache = new LockedCache();
+		fileCache = new FileCache(1 << 20);
+		files = new File[FILES];
+		for (int i = 0; i < FILES; i++) {
+			File cached = new File("/www/site1/file" + i + ".html");
+			byte[] content = new byte[1024];
+			lockedCache.put(cached, content);
+			fileCache.put(cached, content, 0);
+			// a new File of the same path, like the one the handler creates for every request
+			files[i] = new File(lookup.equals("hit") ? cached.getPath() : "/www/site1/missing" + i + ".html");
+		}
+	}
+
+	@Benchmark
+	public byte[] baseline(Cursor c) {
+		return lockedCache.get(files[c.next++ & (FILES - 1)]);
+	}
+
+	@Benchmark
+	public FileCache.Entry lockFree(Cursor c) {
+		return fileCache.get(files[c.next++ & (FILES - 1)]);
+	}
+
+	/**
+	 * The lookup of the first FileCache
+	 */
+	static class LockedCache {
+		private final LinkedHashMap<File, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+		private long hits = 0;
+		private long misses = 0;
+
+		synchronized byte[] get(File file) {
+			byte[] content = entries.get(file);
+			if (content == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+			return content;
+		}
+
+		synchronized void put(File file, byte[] content) {
+			entries.put(file, content);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The Date header and the If-Modified-Since parsing: a new SimpleDateFormat per
+ * response (baseline) against HTTPDate
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HTTPDateBenchmark {
+
+	private static final String IMS = "Wed, 22 Sep 2021 05:46:29 GMT";
+	private final byte[] imsBytes = IMS.getBytes(StandardCharsets.US_ASCII);
+
+	@Benchmark
+	public byte[] dateHeaderBaseline() {
+		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return ("Date: " + sdf.format(new Date()) + "\r\n").getBytes();
+	}
+
+	@Benchmark
+	public byte[] dateHeader() {
+		return HTTPDate.dateHeader();
+	}
+
+	@Benchmark
+	public long parseBaseline() throws ParseException {
+		SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return sdf.parse(IMS).getTime();
+	}
+
+	@Benchmark
+	public long parse() {
+		return HTTPDate.parse(imsBytes, 0, imsBytes.length);
+	}
+}
@@ -0,0 +1,150 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing the request line & headers of a request: the old StringBuilder/split
+ * parsing of SelectHTTPRequestHandler (baseline) against HTTPRequestParser
+ * Both extract the same fields: method, path, query, host, user agent, content
+ * length, keep-alive and If-Modified-Since.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HTTPRequestParserBenchmark {
+
+	// a request of curl, and a request of a browser
+	@Param({ "curl", "browser" })
+	public String request;
+
+	private ByteBuffer buffer;
+	private HTTPRequestParser parser;
+	private StringBuilder sb;
+
+	@Setup
+	public void setup() {
+		String s;
+		if (request.equals("curl")) {
+			s = "GET /text.txt HTTP/1.1\r\n"
+					+ "Host: localhost:6789\r\n"
+					+ "User-Agent: curl/7.81.0\r\n"
+					+ "Accept: */*\r\n"
+					+ "\r\n";
+		} else {
+			s = "GET /test.cgi?application HTTP/1.1\r\n"
+					+ "Host: test.server2:6789\r\n"
+					+ "Connection: keep-alive\r\n"
+					+ "Cache-Control: max-age=0\r\n"
+					+ "Upgrade-Insecure-Requests: 1\r\n"
+					+ "User-Agent: Mozilla/5.0 (iPhone; CPU iPhone OS 15_0 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/15.0 Mobile/15E148 Safari/604.1\r\n"
+					+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+					+ "Accept-Encoding: gzip, deflate\r\n"
+					+ "Accept-Language: en-US,en;q=0.9\r\n"
+					+ "If-Modified-Since: Wed, 22 Sep 2021 05:46:29 GMT\r\n"
+					+ "\r\n";
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+		buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+		parser = new HTTPRequestParser();
+		sb = new StringBuilder(SelectHTTPRequestHandler.BUFFER_SIZE);
+	}
+
+	@Benchmark
+	public void baseline(Blackhole bh) {
+		buffer.rewind();
+		sb.setLength(0);
+
+		// read into request until \n\r\n
+		int countNRN = 0;
+		while (buffer.hasRemaining()) {
+			char ch = (char) buffer.get();
+			sb.append(ch);
+			if (ch == '\n') countNRN++;
+			else if (ch == '\r' && countNRN == 1) countNRN++;
+			else countNRN = 0;
+			if (countNRN == 3)
+				break;
+		}
+		int contentLength = -1;
+		int CLHeader = sb.indexOf("Content-Length:");
+		if (CLHeader != -1) {
+			int nextRN = sb.indexOf("\r\n", CLHeader);
+			contentLength = Integer.parseInt(sb.substring(CLHeader + 15, nextRN).trim());
+		}
+
+		// parseRequest()
+		String requestsArr[] = sb.toString().split("\\r\\n");
+		String[] request = requestsArr[0].split("\\s");
+		int requestType = 0;
+		if (request[0].trim().toUpperCase().equals("GET"))
+			requestType = 1;
+		else if (request[0].trim().toUpperCase().equals("POST"))
+			requestType = 2;
+		boolean keepAlive = request.length >= 3 && request[2].trim().toUpperCase().equals("HTTP/1.1");
+		String urlName = request[1].trim();
+		String query = null;
+		if (urlName.contains("?") && requestType == 1) {
+			int q_index = urlName.indexOf("?");
+			query = urlName.substring(q_index + 1).trim();
+			urlName = urlName.substring(0, q_index).trim();
+		}
+		String host = null;
+		boolean phone = false;
+		String ims = null;
+		for (int i = 1; i < requestsArr.length; i++) {
+			String line = requestsArr[i];
+			int idx = line.indexOf(":");
+			String header = line.substring(0, idx).trim();
+			String content = line.substring(idx + 1).trim();
+			if (header.toLowerCase().equals("host")) {
+				host = content;
+				if (host.contains(":"))
+					host = content.substring(0, content.indexOf(":")).trim();
+			} else if (header.toLowerCase().equals("user-agent")) {
+				phone = content.toLowerCase().contains("iphone") || content.toLowerCase().contains("phone");
+			} else if (header.toLowerCase().equals("content-length")) {
+				contentLength = Integer.parseInt(content);
+			} else if (header.toLowerCase().equals("connection")) {
+				if (content.toLowerCase().contains("close"))
+					keepAlive = false;
+				else if (content.toLowerCase().contains("keep-alive"))
+					keepAlive = true;
+			} else if (header.toLowerCase().equals("if-modified-since")) {
+				ims = content;
+			}
+		}
+		bh.consume(requestType);
+		bh.consume(urlName);
+		bh.consume(query);
+		bh.consume(host);
+		bh.consume(phone);
+		bh.consume(contentLength);
+		bh.consume(keepAlive);
+		bh.consume(ims);
+	}
+
+	@Benchmark
+	public void parser(Blackhole bh) {
+		buffer.rewind();
+		parser.reset();
+		parser.parse(buffer);
+		bh.consume(parser.getMethod());
+		bh.consume(parser.getPath());
+		bh.consume(parser.getQuery());
+		bh.consume(parser.getHost());
+		bh.consume(parser.isPhoneUserAgent());
+		bh.consume(parser.getContentLength());
+		bh.consume(parser.isKeepAlive());
+		bh.consume(parser.getIfModifiedSince());
+	}
+}
@@ -0,0 +1,147 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * From the Host header and the path of a request to the file to serve: the virtual
+ * host lookup of parseRequest and the path checks of outputFile of
+ * SelectHTTPRequestHandler (baseline), against canonicalOnce: a single map lookup,
+ * the document roots normalized and canonicalized once (as they would be in
+ * readConfig), and a single getCanonicalPath of the file
+ * getCanonicalPath walks the path with a system call per component, so the baseline
+ * pays for it up to four times per request (five for a directory).
+ * openFileCache resolves the request with OpenFileCache, which only goes to the file system
+ * when its entry has expired (once a second here), and also gives the size, mtime and type.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PathResolutionBenchmark {
+
+	// the Host header: a configured virtual host, or an unknown one (the default host)
+	@Param({ "vhost", "default" })
+	public String host;
+
+	// a file, or a directory (index.html)
+	@Param({ "/index.html", "/" })
+	public String path;
+
+	private Path root1, root2;
+	private HashMap<String, VirtualHost> virtualHosts;
+	private VirtualHost defaultVHost;
+	private String hostHeader;
+
+	// canonicalOnce: the document roots ending with "/", and their canonical paths
+	private HashMap<String, String[]> roots;
+	private String[] defaultRoot;
+
+	private OpenFileCache openFileCache;
+
+	@Setup
+	public void setup() throws IOException {
+		root1 = Files.createTempDirectory("site1");
+		root2 = Files.createTempDirectory("site2");
+		Files.write(root1.resolve("index.html"), new byte[1024]);
+		Files.write(root2.resolve("index.html"), new byte[1024]);
+		defaultVHost = new VirtualHost(root1.toString(), "test.server1");
+		VirtualHost vh2 = new VirtualHost(root2.toString(), "test.server2");
+		virtualHosts = new HashMap<>();
+		virtualHosts.put(defaultVHost.getServerName(), defaultVHost);
+		virtualHosts.put(vh2.getServerName(), vh2);
+		hostHeader = host.equals("vhost") ? "test.server2" : "unknown.server";
+
+		roots = new HashMap<>();
+		for (VirtualHost vh : virtualHosts.values()) {
+			String docRoot = vh.getDocRoot().trim();
+			roots.put(vh.getServerName(), new String[] { docRoot.endsWith("/") ? docRoot : docRoot + "/",
+					new File(docRoot).getCanonicalPath() + "/" });
+		}
+		defaultRoot = roots.get(defaultVHost.getServerName());
+		openFileCache = new OpenFileCache(1024, 1000);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(root1.resolve("index.html"));
+		Files.delete(root2.resolve("index.html"));
+		Files.delete(root1);
+		Files.delete(root2);
+	}
+
+	@Benchmark
+	public File baseline() throws IOException {
+		// parseRequest()
+		String urlName = path;
+		if (urlName.startsWith("/") == true)
+			urlName = urlName.substring(1);
+		String filePath = null;
+		VirtualHost myVH = null;
+		if (hostHeader != null && virtualHosts.containsKey(hostHeader)) {
+			VirtualHost vh = virtualHosts.get(hostHeader);
+			myVH = vh;
+			String docRoot = vh.getDocRoot().trim();
+			if (docRoot.endsWith("/")) {
+				filePath = docRoot + urlName;
+			} else {
+				filePath = docRoot + "/" + urlName;
+			}
+		}
+		if (filePath == null) {
+			myVH = defaultVHost;
+			String docRoot = defaultVHost.getDocRoot().trim();
+			if (docRoot.endsWith("/")) {
+				filePath = docRoot + urlName;
+			} else {
+				filePath = docRoot + "/" + urlName;
+			}
+		}
+
+		// outputFile()
+		File file = new File(filePath);
+		if (file.isDirectory())
+			file = new File(file.getCanonicalPath() + "/index.html");
+		File rootDir = new File(myVH.getDocRoot());
+		if (!file.getCanonicalPath().startsWith(rootDir.getCanonicalPath()))
+			return null; // 403
+		if (!file.isFile())
+			return null; // 404
+		return file;
+	}
+
+	@Benchmark
+	public File canonicalOnce() throws IOException {
+		String[] root = roots.get(hostHeader);
+		if (root == null)
+			root = defaultRoot;
+		File file = new File(root[0] + path.substring(1));
+		if (file.isDirectory())
+			file = new File(file, "index.html");
+		String canonicalPath = file.getCanonicalPath();
+		if (!canonicalPath.startsWith(root[1]))
+			return null; // 403
+		if (!file.isFile())
+			return null; // 404
+		return file;
+	}
+
+	@Benchmark
+	public File openFileCache() throws IOException {
+		String[] root = roots.get(hostHeader);
+		if (root == null)
+			root = defaultRoot;
+		OpenFileCache.Entry entry = OpenFileCache.resolve(openFileCache, root[0] + path.substring(1), root[0], false);
+		if (entry.getKind() != OpenFileCache.STATIC)
+			return null; // 403, 404 or CGI
+		return entry.getFile();
+	}
+}
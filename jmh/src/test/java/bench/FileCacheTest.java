@@ -0,0 +1,67 @@
+package bench;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The entries of FileCache that are invalidated or replaced must not stay in its clock
+ * (each of them holds the content of its file)
+ */
+public class FileCacheTest {
+
+	private static final int ROUNDS = 10000;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void invalidateKeepsClockBounded() throws Exception {
+		File file = Files.writeString(dir.resolve("a.txt"), "hello").toFile();
+		FileCache cache = new FileCache(1 << 20);
+		for (int i = 0; i < ROUNDS; i++) {
+			assertTrue(cache.put(file, new byte[1024], i));
+			assertNotNull(cache.get(file));
+			cache.invalidate(file.getCanonicalPath());
+			assertNull(cache.get(file));
+			assertTrue(cache.getClockSize() <= 2, "clock size " + cache.getClockSize());
+		}
+		assertEquals(0, cache.getCurrentSize());
+	}
+
+	@Test
+	public void replaceKeepsClockBounded() throws Exception {
+		File file = Files.writeString(dir.resolve("a.txt"), "hello").toFile();
+		File other = Files.writeString(dir.resolve("b.txt"), "world").toFile();
+		FileCache cache = new FileCache(1 << 20);
+		assertTrue(cache.put(other, new byte[1024], 0));
+		for (int i = 0; i < ROUNDS; i++) {
+			assertTrue(cache.put(file, new byte[1024], i));
+			assertEquals(i, cache.get(file).getLastModified());
+			assertTrue(cache.getClockSize() <= 4, "clock size " + cache.getClockSize());
+		}
+		assertEquals(2048, cache.getCurrentSize());
+		assertNotNull(cache.get(other));
+	}
+
+	@Test
+	public void evictionSkipsDeadEntries() throws Exception {
+		File[] files = new File[4];
+		for (int i = 0; i < files.length; i++)
+			files[i] = Files.writeString(dir.resolve(i + ".txt"), "x").toFile();
+		FileCache cache = new FileCache(3 * 1024);
+		for (int i = 0; i < ROUNDS; i++) {
+			File file = files[i % files.length];
+			assertTrue(cache.put(file, new byte[1024], i));
+			if (i % 3 == 0)
+				cache.invalidate(file.getCanonicalPath());
+			assertTrue(cache.getCurrentSize() <= cache.getMaxSize());
+			assertTrue(cache.getClockSize() <= 2 * files.length, "clock size " + cache.getClockSize());
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package bench;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Range requests to the select server for a file that is not cached, i.e., sent with transferTo
+ * A multipart/byteranges response whose last range ends at the end of the file must not close
+ * the persistent connection
+ */
+public class SelectHTTPServerRangeTest {
+
+	private static final int FILE_SIZE = 10000;
+
+	@TempDir
+	static Path dir;
+
+	private static int port;
+	private static byte[] content;
+
+	@BeforeAll
+	public static void startServer() throws Exception {
+		content = new byte[FILE_SIZE];
+		new Random(1).nextBytes(content);
+		Files.write(dir.resolve("f.bin"), content);
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		// a 1 KB cache, so that the file is sent from its FileChannel
+		Path conf = Files.writeString(dir.resolve("httpd.conf"), "Listen " + port + "\nCacheSize 1\nEventLoops 1\n\n"
+				+ "<VirtualHost *:" + port + ">\n  DocumentRoot " + dir + "\n  ServerName localhost\n</VirtualHost>\n");
+		Thread server = new Thread(() -> {
+			try {
+				SelectHTTPServer.main(new String[] { "-config", conf.toString() });
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "SelectHTTPServer");
+		server.setDaemon(true);
+		server.start();
+		for (int i = 0; ; i++) {
+			try (Socket s = new Socket("127.0.0.1", port)) {
+				return;
+			} catch (IOException e) {
+				if (i == 100)
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * A response: the status code, the headers (with lower-case names) and the body
+	 */
+	private static class Response {
+		int status;
+		Map<String, String> headers = new HashMap<>();
+		byte[] body;
+	}
+
+	private static Response read(InputStream in) throws IOException {
+		Response r = new Response();
+		String statusLine = readLine(in);
+		r.status = Integer.parseInt(statusLine.split(" ")[1]);
+		for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+			int idx = line.indexOf(':');
+			r.headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
+		}
+		r.body = in.readNBytes(Integer.parseInt(r.headers.get("content-length")));
+		return r;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1)
+				throw new EOFException("connection closed");
+			if (c != '\r')
+				sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private static void send(OutputStream out, String range) throws IOException {
+		out.write(("GET /f.bin HTTP/1.1\r\nHost: localhost\r\nRange: " + range + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	/**
+	 * @return the bodies of the parts of a multipart/byteranges response
+	 */
+	private static List<byte[]> parts(Response r) {
+		String type = r.headers.get("content-type");
+		assertTrue(type.startsWith("multipart/byteranges; boundary="), type);
+		byte[] delimiter = ("\r\n--" + type.substring(type.indexOf("boundary=") + 9)).getBytes(StandardCharsets.US_ASCII);
+		String body = new String(r.body, StandardCharsets.ISO_8859_1);
+		String sep = new String(delimiter, StandardCharsets.ISO_8859_1);
+		List<byte[]> parts = new ArrayList<>();
+		// the body starts with the delimiter without its CRLF, and ends with the closing delimiter
+		String[] chunks = ("\r\n" + body).split(java.util.regex.Pattern.quote(sep), -1);
+		assertEquals("--\r\n", chunks[chunks.length - 1]);
+		for (int i = 1; i < chunks.length - 1; i++) {
+			String part = chunks[i];
+			parts.add(part.substring(part.indexOf("\r\n\r\n") + 4).getBytes(StandardCharsets.ISO_8859_1));
+		}
+		return parts;
+	}
+
+	@Test
+	public void multipartEndingWithSuffixRangeKeepsConnection() throws IOException {
+		try (Socket socket = new Socket("127.0.0.1", port)) {
+			socket.setSoTimeout(5000);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			send(out, "bytes=0-99,-100");
+			Response r = read(in);
+			assertEquals(206, r.status);
+			List<byte[]> parts = parts(r);
+			assertEquals(2, parts.size());
+			assertArrayEquals(Arrays.copyOfRange(content, 0, 100), parts.get(0));
+			assertArrayEquals(Arrays.copyOfRange(content, FILE_SIZE - 100, FILE_SIZE), parts.get(1));
+
+			// the same connection serves the next request
+			send(out, "bytes=-10");
+			r = read(in);
+			assertEquals(206, r.status);
+			assertArrayEquals(Arrays.copyOfRange(content, FILE_SIZE - 10, FILE_SIZE), r.body);
+		}
+	}
+}
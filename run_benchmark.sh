@@ -1,67 +1,47 @@
 #!/bin/bash
+# usage: ./run_benchmark.sh [requests] [sleep time] [message] [server jar] [config] [execution model]
+# appends the Transfer rate (KB/sec) of every concurrency to benchmark_result.txt under the message,
+# against the server running on port 6789, or with a jar and a config, against that server started
+# by the script, with ExecutionModel platform or virtual if given, e.g.,
+# ./run_benchmark.sh 5000 1 basic_virtual_5000_linux HTTPServer.jar config/httpd.conf virtual
+# The requests are sent by ab, or if ab is not installed, by LoadGenerator.jar (see compile_loadgen.sh)
+# in its closed mode (one connection per request, like ab), where every concurrency runs for as long
+# as [requests] / 1000 sec (at least 1) instead of a number of requests
+conf=/tmp/run_benchmark.conf
+if [[ -n "$4" ]]
+then
+	if [[ -n "$6" ]]
+	then
+		(echo "ExecutionModel $6"; cat $5) > $conf
+	else
+		cp $5 $conf
+	fi
+	java -jar $4 -config $conf > /dev/null &
+	server=$!
+	sleep 2
+fi
+duration=$(( $1 / 1000 ))
+if [[ $duration -lt 1 ]]
+then
+	duration=1
+fi
 echo "========="$3"==========" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 1 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 2 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 3 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 4 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 5 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 6 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 7 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 8 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 9 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 10 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 11 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 13 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 15 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 17 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 20 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 25 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 30 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 35 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 40 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 45 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-sleep $2
-ab -n $1 -c 50 http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
-echo "" >> benchmark_result.txt
-echo "" >> benchmark_result.txt
+for c in 1 2 3 4 5 6 7 8 9 10 11 13 15 17 20 25 30 35 40 45 50
+do
+	sleep $2
+	if command -v ab > /dev/null
+	then
+		ab -n $1 -c $c http://localhost:6789/index.html | grep "Transfer rate" | tail -c 30 | head -c 7 >> benchmark_result.txt
+	else
+		java -jar LoadGenerator.jar -c $c -d $duration -warmup 0 | sed -e 's/.*"transfer_kbps":\([0-9.]*\).*/\1/' | tr -d '\n' >> benchmark_result.txt
+	fi
+	echo "" >> benchmark_result.txt
+done
+echo "" >> benchmark_result.txt
+if [[ -n "$4" ]]
+then
+	kill $server
+	wait $server 2> /dev/null
+	rm $conf
+fi
 cat benchmark_result.txt
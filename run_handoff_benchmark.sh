@@ -0,0 +1,29 @@
+#!/bin/bash
+# usage: ./run_handoff_benchmark.sh [requests] [concurrency] [message], with ThreadHTTPServer.jar (see compile_thread.sh)
+# runs the thread server on port 6789 with every HandOff and a growing ThreadPoolSize (the other directives
+# are those of config/httpd_thread.conf), and appends the Requests per second of ab to benchmark_result.txt
+# under the message, one line per ThreadPoolSize
+conf=/tmp/handoff_benchmark.conf
+echo "========="$3"==========" >> benchmark_result.txt
+echo "ThreadPoolSize locked lockfree accept" >> benchmark_result.txt
+for size in 1 5 25 100 400
+do
+	line=$size
+	for handOff in locked lockfree accept
+	do
+		sed -e "s/^ThreadPoolSize.*/ThreadPoolSize $size\nHandOff $handOff/" config/httpd_thread.conf > $conf
+		java -jar ThreadHTTPServer.jar -config $conf > /dev/null &
+		server=$!
+		sleep 2
+		# warm up
+		ab -n 1000 -c $2 http://localhost:6789/index.html > /dev/null
+		line="$line "$(ab -n $1 -c $2 http://localhost:6789/index.html | grep "Requests per second" | awk '{print $4}')
+		kill $server
+		wait $server 2> /dev/null
+		sleep 1
+	done
+	echo $line >> benchmark_result.txt
+done
+echo "" >> benchmark_result.txt
+rm $conf
+cat benchmark_result.txt
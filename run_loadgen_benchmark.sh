@@ -0,0 +1,13 @@
+#!/bin/bash
+# usage: ./run_loadgen_benchmark.sh [label] [duration] [other options of LoadGenerator], with LoadGenerator.jar
+# (see compile_loadgen.sh), against the server running on port 6789
+# runs LoadGenerator in the closed mode with the concurrencies of run_benchmark.sh, and appends the JSON
+# of every run (one line per concurrency, with the label) to loadgen_result.jsonl
+label=$1
+duration=$2
+shift 2
+for c in 1 2 3 4 5 6 7 8 9 10 11 13 15 17 20 25 30 35 40 45 50
+do
+	java -jar LoadGenerator.jar -label $label -c $c -d $duration -o loadgen_result.jsonl "$@" > /dev/null
+done
+tail -n 21 loadgen_result.jsonl